@@ -0,0 +1,47 @@
+package com.gcplot.connector;
+
+import com.beust.jcommander.JCommander;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Bootstrap#extensionMatches(File)} over large directory listings, with a mix
+ * of active, rotated, gzipped and unrelated file names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExtensionMatchBenchmark {
+    private static final String[] SUFFIXES = { ".log", ".log.%d", ".log.%d.gz", ".log.%d.current", ".out", ".hprof", ".log.tmp" };
+
+    @Param({ "100", "10000" })
+    public int files;
+
+    private File[] listing;
+    private Bootstrap bootstrap;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        listing = new File[files];
+        for (int i = 0; i < files; i++) {
+            String suffix = String.format(SUFFIXES[random.nextInt(SUFFIXES.length)], random.nextInt(100));
+            listing[i] = new File("/var/log/app", "gc-" + random.nextInt(1000) + suffix);
+        }
+        bootstrap = new Bootstrap();
+        new JCommander(bootstrap, "-logs_dirs", "/var/log/app", "-gcp_host", "localhost", "-data_dir", System.getProperty("java.io.tmpdir"),
+                "-analyze_group", "bench", "-jvm_ids", "bench", "-token", "bench", "-version", "bench");
+    }
+
+    @Benchmark
+    public void extensionMatches(Blackhole bh) {
+        for (File f : listing) {
+            bh.consume(bootstrap.extensionMatches(f));
+        }
+    }
+
+}
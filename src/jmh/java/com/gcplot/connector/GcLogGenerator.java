@@ -0,0 +1,95 @@
+package com.gcplot.connector;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates realistic, reproducible JDK 8 GC logs, as written with
+ * {@code -XX:+PrintGCDetails -XX:+PrintGCDateStamps}. The same seed always
+ * produces the same log.
+ */
+public class GcLogGenerator {
+    private static final String[] HEADER = {
+            "Java HotSpot(TM) 64-Bit Server VM (25.121-b13) for linux-amd64 JRE (1.8.0_121-b13), built on Dec 12 2016 16:36:53 by \"java_re\" with gcc 4.3.0 20080428 (Red Hat 4.3.0-8)",
+            "Memory: 4k page, physical 16337396k(1135164k free), swap 0k(0k free)",
+            "CommandLine flags: -XX:InitialHeapSize=261398336 -XX:MaxHeapSize=4182373376 -XX:+PrintGC -XX:+PrintGCDateStamps -XX:+PrintGCDetails -XX:+PrintGCTimeStamps -XX:+UseCompressedClassPointers -XX:+UseCompressedOops -XX:+UseParallelGC"
+    };
+    private static final long YOUNG = 76288;
+    private static final long HEAP = 251392;
+    private final Random random;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    private final long startMillis;
+    private long uptimeMillis;
+    private long old;
+    private boolean headerWritten;
+
+    public GcLogGenerator(long seed) {
+        this(seed, 1490695200000L);
+    }
+
+    public GcLogGenerator(long seed, long startMillis) {
+        this.random = new Random(seed);
+        this.startMillis = startMillis;
+        this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * @return the next line of the log, including the line separator
+     */
+    public String nextLine() {
+        if (!headerWritten) {
+            headerWritten = true;
+            StringBuilder sb = new StringBuilder();
+            for (String h : HEADER) {
+                sb.append(h).append('\n');
+            }
+            return sb.toString();
+        }
+        uptimeMillis += 50 + random.nextInt(500);
+        String prefix = dateFormat.format(new Date(startMillis + uptimeMillis)) + ": "
+                + String.format("%d.%03d", uptimeMillis / 1000, uptimeMillis % 1000) + ": ";
+        long pauseMicros = 1000 + random.nextInt(30000);
+        String pause = String.format("%d.%07d", pauseMicros / 1000000, (pauseMicros % 1000000) * 10);
+        long promoted = random.nextInt(2048);
+        if (old + promoted > HEAP - YOUNG) {
+            long after = (old + promoted) / 4;
+            String line = prefix + "[Full GC (Ergonomics) [PSYoungGen: " + promoted + "K->0K(" + YOUNG + "K)] [ParOldGen: "
+                    + old + "K->" + after + "K(" + (HEAP - YOUNG) + "K)] " + (old + promoted) + "K->" + after + "K(" + HEAP
+                    + "K), [Metaspace: 3342K->3342K(1056768K)], " + pause + " secs] [Times: user=0.05 sys=0.00, real="
+                    + String.format("%.2f", pauseMicros / 1e6) + " secs] \n";
+            old = after;
+            return line;
+        }
+        long youngAfter = 512 + random.nextInt(10240);
+        String line = prefix + "[GC (Allocation Failure) [PSYoungGen: " + (YOUNG - 10752) + "K->" + youngAfter + "K("
+                + YOUNG + "K)] " + (YOUNG - 10752 + old) + "K->" + (youngAfter + old + promoted) + "K(" + HEAP + "K), "
+                + pause + " secs] [Times: user=0.03 sys=0.01, real=" + String.format("%.2f", pauseMicros / 1e6) + " secs] \n";
+        old += promoted;
+        return line;
+    }
+
+    /**
+     * Writes at least {@code bytes} of the log to the file, gzipped if {@code gzip} is set.
+     */
+    public void write(File f, long bytes, boolean gzip) throws IOException {
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(f), 64 * 1024);
+        if (gzip) {
+            os = new GZIPOutputStream(os, 64 * 1024);
+        }
+        try {
+            long written = 0;
+            while (written < bytes) {
+                byte[] line = nextLine().getBytes("UTF-8");
+                os.write(line);
+                written += line.length;
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+}
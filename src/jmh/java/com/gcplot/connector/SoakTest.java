@@ -0,0 +1,441 @@
+package com.gcplot.connector;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Soak test of the whole connector. Runs {@link Bootstrap} in a separate JVM against {@link S3StandIn}
+ * and a stubbed GCPlot API, while a number of fake JVMs write GC logs at the given rate and rotate
+ * them into {@code .N} or {@code .N.gz} files.
+ *
+ * Reports end-to-end lag (from a line being written to it being stored), CPU, heap and disk I/O
+ * of the connector process, and verifies that every written line arrived exactly once. Exits
+ * with 1 if any line is missing or duplicated.
+ *
+ * Usage: {@code ./gradlew soak -PsoakArgs="-jvms 8 -rate 65536 -duration_sec 600"}
+ */
+public class SoakTest {
+    private static final String EXTENSION = ".log";
+    private static final String ANALYZE_ID = "soak";
+    private static final String ACCOUNT_ID = "soak-account";
+    private static final String BUCKET = "soak";
+    private static final int KEY_LENGTH = 64;
+
+    @Parameter(names = { "-jvms" }, description = "Number of fake JVMs.")
+    private int jvms = 4;
+    @Parameter(names = { "-rate" }, description = "Bytes written per second by each JVM.")
+    private long rate = 64 * 1024;
+    @Parameter(names = { "-rotate_bytes" }, description = "Size of the active log, after which it's rotated.")
+    private long rotateBytes = 1024 * 1024;
+    @Parameter(names = { "-keep" }, description = "Number of rotated logs kept by each JVM.")
+    private int keep = 10;
+    @Parameter(names = { "-gzip" }, description = "Whether the rotated logs are gzipped.")
+    private boolean gzip = false;
+    @Parameter(names = { "-incremental" }, description = "Runs the connector in incremental mode.")
+    private boolean incremental = false;
+    @Parameter(names = { "-duration_sec" }, description = "How long the JVMs write their logs.")
+    private int durationSec = 60;
+    @Parameter(names = { "-drain_sec" }, description = "How long to wait for the connector to ship everything after the JVMs stop.")
+    private int drainSec = 120;
+    @Parameter(names = { "-heap" }, description = "Max heap of the connector process.")
+    private String heap = "128m";
+    @Parameter(names = { "-connector_args" }, description = "Additional space-separated connector arguments.")
+    private String connectorArgs = "";
+
+    private final Map<String, Map<String, Integer>> received = new HashMap<String, Map<String, Integer>>();
+    private final Map<String, Map<String, Long>> receivedAt = new HashMap<String, Map<String, Long>>();
+    private final Set<String> parsed = new HashSet<String>();
+
+    public static void main(String[] args) throws Exception {
+        SoakTest test = new SoakTest();
+        new JCommander(test, args);
+        System.exit(test.run() ? 0 : 1);
+    }
+
+    public boolean run() throws Exception {
+        File work = Files.createTempDirectory("gcpc-soak").toFile();
+        S3StandIn s3 = new S3StandIn(true);
+        HttpServer api = api(s3.getEndpoint());
+        Process connector = null;
+        try {
+            List<FakeJvm> fakeJvms = new ArrayList<FakeJvm>();
+            List<String> logsDirs = new ArrayList<String>();
+            List<String> jvmIds = new ArrayList<String>();
+            for (int i = 0; i < jvms; i++) {
+                File dir = new File(work, "logs/jvm" + i);
+                dir.mkdirs();
+                fakeJvms.add(new FakeJvm(i, dir));
+                logsDirs.add(dir.getPath());
+                jvmIds.add("jvm" + i);
+            }
+            Utils.Port metricsPort = Utils.getFreePorts(1)[0];
+            metricsPort.unlock();
+            connector = startConnector(work, api.getAddress().getPort(), metricsPort.value,
+                    join(logsDirs), join(jvmIds));
+            String metricsUrl = "http://localhost:" + metricsPort.value + "/metrics";
+
+            long start = System.currentTimeMillis();
+            List<Thread> writers = new ArrayList<Thread>();
+            for (FakeJvm jvm : fakeJvms) {
+                Thread t = new Thread(jvm, "writer-" + jvm.id);
+                t.start();
+                writers.add(t);
+            }
+            Sampler sampler = new Sampler(metricsUrl);
+            while (System.currentTimeMillis() - start < durationSec * 1000L) {
+                Thread.sleep(1000);
+                sampler.sample();
+            }
+            for (FakeJvm jvm : fakeJvms) {
+                jvm.stop = true;
+            }
+            for (Thread t : writers) {
+                t.join();
+            }
+            long stopped = System.currentTimeMillis();
+
+            Result result = verify(s3, fakeJvms);
+            while (!result.isComplete() && System.currentTimeMillis() - stopped < drainSec * 1000L) {
+                Thread.sleep(1000);
+                sampler.sample();
+                result = verify(s3, fakeJvms);
+            }
+            sampler.sample();
+            report(result, sampler, s3, fakeJvms, (System.currentTimeMillis() - start) / 1000.0);
+            return result.missing == 0 && result.duplicates == 0 && result.unexpected == 0;
+        } finally {
+            if (connector != null) {
+                connector.destroy();
+                connector.waitFor();
+            }
+            api.stop(0);
+            s3.close();
+            FileUtils.deleteQuietly(work);
+        }
+    }
+
+    private Process startConnector(File work, int apiPort, int metricsPort, String logsDirs, String jvmIds) throws IOException {
+        File data = new File(work, "data");
+        data.mkdirs();
+        File logback = new File(work, "logback.xml");
+        FileUtils.write(logback, "<configuration><appender name=\"FILE\" class=\"ch.qos.logback.core.FileAppender\">"
+                + "<file>" + new File(work, "connector.log").getPath() + "</file><encoder>"
+                + "<pattern>%d{yyyy/MM/dd HH:mm:ss.SSS} %p [%c{1}] %m%n</pattern></encoder></appender>"
+                + "<root level=\"info\"><appender-ref ref=\"FILE\"/></root></configuration>", "UTF-8");
+        List<String> cmd = new ArrayList<String>(Arrays.asList(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-Xmx" + heap, "-Xms" + heap, "-Dlogback.configurationFile=" + logback.getPath(),
+                "-cp", System.getProperty("java.class.path"), Bootstrap.class.getName(),
+                "-logs_dirs", logsDirs, "-gcp_host", "localhost:" + apiPort, "-http", "-data_dir", data.getPath(),
+                "-analyze_group", ANALYZE_ID, "-jvm_ids", jvmIds, "-token", "soak", "-extension", EXTENSION,
+                "-version", "soak", "-metrics_port", String.valueOf(metricsPort), "-sync_files_ms", "1000"));
+        if (incremental) {
+            cmd.add("-incremental");
+        }
+        for (String arg : connectorArgs.split(" ")) {
+            if (!arg.isEmpty()) {
+                cmd.add(arg);
+            }
+        }
+        return new ProcessBuilder(cmd).redirectErrorStream(true)
+                .redirectOutput(new File(work, "connector.out")).start();
+    }
+
+    /**
+     * Stubbed GCPlot API, which points the connector at the given S3 endpoint.
+     */
+    private static HttpServer api(String s3Endpoint) throws IOException {
+        final Map<String, String> responses = new HashMap<String, String>();
+        responses.put("/connector/version/latest", "{\"result\":{\"result\":\"soak\"}}");
+        responses.put("/user/account/id", "{\"result\":\"" + ACCOUNT_ID + "\"}");
+        responses.put("/analyse/get", "{\"result\":{\"id\":\"" + ANALYZE_ID + "\",\"source_type\":\"s3\","
+                + "\"source_config\":\"s3.bucket=" + BUCKET + ";s3.region.id=us-east-1;s3.access_key=access;"
+                + "s3.secret_key=secret;s3.endpoint=" + s3Endpoint + "\"}}");
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String response = responses.get(exchange.getRequestURI().getPath());
+                byte[] body = (response == null ? "{\"error\":\"not found\"}" : response).getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(response == null ? 404 : 200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                try {
+                    os.write(body);
+                } finally {
+                    os.close();
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Parses the newly stored objects and compares their lines to the written ones.
+     */
+    private Result verify(S3StandIn s3, List<FakeJvm> fakeJvms) throws IOException {
+        for (Map.Entry<String, byte[]> e : s3.getObjects().entrySet()) {
+            if (!parsed.add(e.getKey())) {
+                continue;
+            }
+            String[] path = e.getKey().split("/");
+            String jvmId = path[path.length - 2];
+            Map<String, Integer> counts = received.get(jvmId);
+            Map<String, Long> times = receivedAt.get(jvmId);
+            if (counts == null) {
+                counts = new HashMap<String, Integer>();
+                times = new HashMap<String, Long>();
+                received.put(jvmId, counts);
+                receivedAt.put(jvmId, times);
+            }
+            long arrival = s3.getArrivals().get(e.getKey());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new ByteArrayInputStream(e.getValue())), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String key = key(line);
+                    Integer count = counts.get(key);
+                    counts.put(key, count == null ? 1 : count + 1);
+                    Long time = times.get(key);
+                    if (time == null || time > arrival) {
+                        times.put(key, arrival);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        Result result = new Result();
+        for (FakeJvm jvm : fakeJvms) {
+            Map<String, Integer> counts = received.get("jvm" + jvm.id);
+            Map<String, Long> times = receivedAt.get("jvm" + jvm.id);
+            for (Map.Entry<String, Long> w : jvm.written.entrySet()) {
+                Integer count = counts == null ? null : counts.get(w.getKey());
+                if (count == null) {
+                    result.missing++;
+                } else {
+                    result.duplicates += count - 1;
+                    result.lags.add(times.get(w.getKey()) - w.getValue());
+                }
+            }
+            if (counts != null) {
+                for (String key : counts.keySet()) {
+                    if (!jvm.written.containsKey(key)) {
+                        result.unexpected++;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private void report(Result result, Sampler sampler, S3StandIn s3, List<FakeJvm> fakeJvms, double seconds) {
+        long lines = 0;
+        long bytes = 0;
+        for (FakeJvm jvm : fakeJvms) {
+            lines += jvm.written.size();
+            bytes += jvm.bytes;
+        }
+        Collections.sort(result.lags);
+        System.out.println("=== GCPC soak test: " + jvms + " JVMs x " + rate + " B/s, rotation at " + rotateBytes
+                + " bytes" + (gzip ? " (gzipped)" : "") + (incremental ? ", incremental" : "") + " ===");
+        System.out.printf("Duration:            %.1f s%n", seconds);
+        System.out.printf("Written:             %d lines, %d bytes%n", lines, bytes);
+        System.out.printf("Stored:              %d objects, %d bytes received, %d re-uploads%n",
+                s3.getObjects().size(), s3.getBytesReceived(), s3.getOverwrites());
+        System.out.printf("Missing lines:       %d%n", result.missing);
+        System.out.printf("Duplicate lines:     %d%n", result.duplicates);
+        System.out.printf("Unexpected lines:    %d%n", result.unexpected);
+        System.out.printf("End-to-end lag:      p50 %.1f s, p99 %.1f s, max %.1f s%n",
+                percentile(result.lags, 0.5), percentile(result.lags, 0.99), percentile(result.lags, 1));
+        System.out.printf("Connector CPU:       %.1f s total, %.2f cores on average%n",
+                sampler.cpuSeconds, sampler.cpuSeconds / seconds);
+        System.out.printf("Connector heap:      %.1f MB max used%n", sampler.maxHeap / (1024 * 1024));
+        System.out.printf("Connector disk I/O:  %.1f MB read, %.1f MB written%n",
+                sampler.readBytes / (1024 * 1024), sampler.writeBytes / (1024 * 1024));
+        System.out.printf("Max unshipped lag:   %.1f s%n", sampler.maxUnshippedLag);
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) {
+            return Double.NaN;
+        }
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index))) / 1000.0;
+    }
+
+    /**
+     * GC log lines are unique within a JVM by their date and uptime prefix, which keeps
+     * the bookkeeping small for long runs.
+     */
+    private static String key(String line) {
+        return line.length() > KEY_LENGTH ? line.substring(0, KEY_LENGTH) : line;
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String v : values) {
+            sb.append(sb.length() > 0 ? "," : "").append(v);
+        }
+        return sb.toString();
+    }
+
+    private static class Result {
+        long missing;
+        long duplicates;
+        long unexpected;
+        final List<Long> lags = new ArrayList<Long>();
+
+        boolean isComplete() {
+            return missing == 0;
+        }
+    }
+
+    /**
+     * Scrapes resource usage of the connector from its metrics endpoint.
+     */
+    private static class Sampler {
+        private final String url;
+        double cpuSeconds;
+        double maxHeap;
+        double readBytes;
+        double writeBytes;
+        double maxUnshippedLag;
+
+        Sampler(String url) {
+            this.url = url;
+        }
+
+        void sample() {
+            String text;
+            try {
+                InputStream is = new URL(url).openStream();
+                try {
+                    text = IOUtils.toString(is, "UTF-8");
+                } finally {
+                    is.close();
+                }
+            } catch (IOException e) {
+                // the connector isn't up yet
+                return;
+            }
+            for (String line : text.split("\n")) {
+                if (line.startsWith("#") || line.indexOf(' ') < 0) {
+                    continue;
+                }
+                String name = line.substring(0, line.lastIndexOf(' '));
+                double value = Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+                if (name.equals("gcpc_process_cpu_seconds_total")) {
+                    cpuSeconds = value;
+                } else if (name.equals("gcpc_jvm_heap_used_bytes")) {
+                    maxHeap = Math.max(maxHeap, value);
+                } else if (name.equals("gcpc_process_read_bytes_total")) {
+                    readBytes = value;
+                } else if (name.equals("gcpc_process_write_bytes_total")) {
+                    writeBytes = value;
+                } else if (name.startsWith("gcpc_unshipped_lag_seconds")) {
+                    maxUnshippedLag = Math.max(maxUnshippedLag, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a GC log at the configured rate and rotates it the way {@code -XX:+UseGCLogFileRotation}
+     * or logrotate do: {@code gc.log} becomes {@code gc.log.1} and older files shift up to {@code keep}.
+     */
+    private class FakeJvm implements Runnable {
+        final int id;
+        final File dir;
+        final GcLogGenerator generator;
+        final Map<String, Long> written = new HashMap<String, Long>();
+        long bytes;
+        volatile boolean stop;
+
+        FakeJvm(int id, File dir) {
+            this.id = id;
+            this.dir = dir;
+            this.generator = new GcLogGenerator(id, System.currentTimeMillis());
+        }
+
+        @Override
+        public void run() {
+            try {
+                long start = System.currentTimeMillis();
+                File active = new File(dir, "gc" + EXTENSION);
+                OutputStream os = new FileOutputStream(active);
+                List<String> pending = new ArrayList<String>();
+                while (!stop) {
+                    long target = rate * (System.currentTimeMillis() - start) / 1000;
+                    while (bytes < target) {
+                        String chunk = generator.nextLine();
+                        byte[] data = chunk.getBytes("UTF-8");
+                        os.write(data);
+                        bytes += data.length;
+                        pending.addAll(Arrays.asList(chunk.split("\n")));
+                    }
+                    os.flush();
+                    long now = System.currentTimeMillis();
+                    for (String line : pending) {
+                        written.put(key(line), now);
+                    }
+                    pending.clear();
+                    if (active.length() >= rotateBytes) {
+                        os.close();
+                        rotate(active);
+                        os = new FileOutputStream(active);
+                    }
+                    Thread.sleep(100);
+                }
+                os.close();
+                if (active.length() > 0) {
+                    rotate(active);
+                }
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+
+        private void rotate(File active) throws IOException {
+            String suffix = gzip ? ".gz" : "";
+            FileUtils.deleteQuietly(new File(dir, active.getName() + "." + keep + suffix));
+            for (int i = keep - 1; i >= 1; i--) {
+                File f = new File(dir, active.getName() + "." + i + suffix);
+                if (f.exists()) {
+                    Files.move(f.toPath(), new File(dir, active.getName() + "." + (i + 1) + suffix).toPath());
+                }
+            }
+            File rotated = new File(dir, active.getName() + ".1" + suffix);
+            if (gzip) {
+                // compressed under a name the connector ignores, so it never sees a partial gzip
+                File tmp = new File(dir, "." + rotated.getName() + ".part");
+                OutputStream os = new GZIPOutputStream(new FileOutputStream(tmp));
+                try {
+                    FileUtils.copyFile(active, os);
+                } finally {
+                    os.close();
+                }
+                Files.move(tmp.toPath(), rotated.toPath());
+                active.delete();
+            } else {
+                Files.move(active.toPath(), rotated.toPath());
+            }
+        }
+    }
+
+}
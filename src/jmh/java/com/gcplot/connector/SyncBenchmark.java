@@ -0,0 +1,89 @@
+package com.gcplot.connector;
+
+import com.beust.jcommander.JCommander;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Checking and spooling of a changed source log: {@link Bootstrap#checkAndScheduleForUpload(File, String)}
+ * on plain and gzipped logs of different sizes, and the format detection
+ * of {@link Bootstrap#detectFormat(File, SourceState)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SyncBenchmark {
+    private static final String JVM_ID = "bench";
+    private static final byte[] TAIL = "2017-01-01T00:00:00.000+0000: 0.001: [GC (Allocation Failure)]\n".getBytes();
+
+    @Param({ "1048576", "16777216", "134217728" })
+    public long size;
+    @Param({ "false", "true" })
+    public boolean gzipped;
+
+    private File dir;
+    private File source;
+    private File[] variants;
+    private int invocations;
+    private Bootstrap bootstrap;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("gcpc-bench").toFile();
+        File logs = new File(dir, "logs");
+        File data = new File(dir, "data");
+        logs.mkdirs();
+        data.mkdirs();
+        source = new File(logs, gzipped ? "gc.log.1.gz" : "gc.log.1");
+        // two versions of the log, which differ in the tail, so the fingerprint of the content changes
+        variants = new File[] { new File(dir, "variant-0"), new File(dir, "variant-1") };
+        new GcLogGenerator(42).write(variants[0], size, gzipped);
+        FileUtils.copyFile(variants[0], variants[1]);
+        OutputStream os = new FileOutputStream(variants[1], true);
+        try {
+            // concatenated gzip members are read as a single stream
+            OutputStream tail = gzipped ? new GZIPOutputStream(os) : os;
+            tail.write(TAIL);
+            tail.close();
+        } finally {
+            os.close();
+        }
+        FileUtils.copyFile(variants[0], source);
+
+        bootstrap = new Bootstrap();
+        new JCommander(bootstrap, "-logs_dirs", logs.getPath(), "-gcp_host", "localhost", "-data_dir", data.getPath(),
+                "-analyze_group", "bench", "-jvm_ids", JVM_ID, "-token", "bench", "-version", "bench");
+        bootstrap.init();
+    }
+
+    @Setup(Level.Invocation)
+    public void change() throws Exception {
+        // a new modification time alone is recognized by the unchanged fingerprint and skipped,
+        // so the tail of the source is changed to get it processed in full every time
+        FileUtils.copyFile(variants[invocations++ % 2], source);
+        source.setLastModified(source.lastModified() + invocations * 1000L);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public void checkAndScheduleForUpload() {
+        bootstrap.checkAndScheduleForUpload(source, JVM_ID);
+    }
+
+    @Benchmark
+    public GcLogFormat detectFormat() throws Exception {
+        return bootstrap.detectFormat(source, new SourceState());
+    }
+
+}
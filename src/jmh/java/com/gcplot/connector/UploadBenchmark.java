@@ -0,0 +1,56 @@
+package com.gcplot.connector;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link S3ResourceManager#upload(File, String)} of spooled files of different sizes
+ * against the in-process {@link S3StandIn}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UploadBenchmark {
+
+    @Param({ "65536", "8388608", "67108864" })
+    public long size;
+
+    private File dir;
+    private File spooled;
+    private S3StandIn s3;
+    private ExecutorService partExecutor;
+    private S3ResourceManager resourceManager;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("gcpc-bench").toFile();
+        File source = new File(dir, "gc.log");
+        new GcLogGenerator(42).write(source, size, false);
+        // logs compress very well, so the source is spooled without compression to keep the size
+        spooled = new File(dir, "spooled.log.gz");
+        FileUtils.copyFile(source, spooled);
+        s3 = new S3StandIn(false);
+        partExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 10);
+        resourceManager = new S3ResourceManager(s3.connector("bench"), partExecutor, 4, new UploadThrottle(0, 0), "", "account", "analyze");
+    }
+
+    @TearDown
+    public void tearDown() {
+        resourceManager.retire();
+        partExecutor.shutdownNow();
+        s3.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public void upload() throws Exception {
+        resourceManager.upload(spooled, "bench");
+    }
+
+}
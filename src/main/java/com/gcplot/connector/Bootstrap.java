@@ -5,29 +5,18 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.vfs2.*;
-import org.apache.commons.vfs2.impl.DefaultFileMonitor;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.URI;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 /**
  * @author <a href="mailto:art.dm.ser@gmail.com">Artem Dmitriev</a>
@@ -35,15 +24,21 @@ import java.util.zip.GZIPOutputStream;
  */
 public class Bootstrap {
     private static final Logger LOG = LoggerFactory.getLogger(Bootstrap.class);
-    private static final ObjectMapper JSON_FACTORY = new ObjectMapper();
     private static final String ROLL_LOG_EXTENSION_PATTERN = "^.*\\.\\d+(\\.gz)?$";
-    private static final String TIMESTAMP_PATTERN = "^( |\\t)*(\\d+\\.\\d+)\\:( |\\t)*";
-    private static final int TIMESTAMP_FIND_LIMIT = 100;
     private static final String GET_ANALYZE = "/analyse/get";
     private static final String GET_ACCOUNT_ID = "/user/account/id";
     private static final String UPLOAD_DIR = "/upload";
+    private static final String STATE_JOURNAL = "state.journal";
+    private static final String UPLOAD_WAL = "upload.wal";
+    private static final String IMPORT_DIR = "/import";
+    private static final String DEAD_LETTER_DIR = "dead-letter";
+    private static final String IMPORT_WAL = "import.wal";
+    private static final String IMPORT_JOURNAL = "import.journal";
+    private static final String UPLOAD_INDEX = "upload.index";
+    private static final String IMPORT_INDEX = "import.index";
+    private static final long DIRECT_UPLOAD_PAUSE_MS = 60000;
 
-    @Parameter(names = { "-logs_dirs" }, required = true, description = "Directory where log files are located")
+    @Parameter(names = { "-logs_dirs" }, description = "Directory where log files are located")
     private String logsDirsStr;
     @Parameter(names = { "-gcp_host" }, required = true, validateValueWith = EmptyStringValidator.class, description = "GCPlot API host address")
     private String gcpHost;
@@ -51,31 +46,96 @@ public class Bootstrap {
     private String dataDir;
     @Parameter(names = { "-analyze_group" }, validateValueWith = EmptyStringValidator.class, required = true, description = "Analyze Group ID")
     private String analyzeId;
-    @Parameter(names = { "-jvm_ids" }, required = true, validateValueWith = EmptyStringValidator.class, description = "JVM ID")
+    @Parameter(names = { "-jvm_ids" }, validateValueWith = EmptyStringValidator.class, description = "JVM ID")
     private String jvmIdsStr;
+    @Parameter(names = { "-logs_pattern" }, description = "Template of the logs dirs, e.g. /var/log/pods/{jvm}/gc, where {jvm} is the JVM ID. Replaces -jvm_ids and -logs_dirs.")
+    private String logsPattern;
+    @Parameter(names = { "-discovery_ms" }, description = "Period in milliseconds, in which the logs dirs matching -logs_pattern are discovered.")
+    private long discoveryMs = 30000;
     @Parameter(names = { "-token" }, required = true, validateValueWith = EmptyStringValidator.class, description = "Token in GCPlot platform")
     private String token;
     @Parameter(names = { "-https" }, description = "Whether to use secure connections.")
     private boolean isHttps = true;
+    @Parameter(names = { "-http" }, description = "Whether to use plain HTTP connections, overrides -https.")
+    private boolean isHttp = false;
     @Parameter(names = { "-extension" }, description = "GC Log Files extension suffix (before .N number for rotating logs)")
     private String extension = ".log";
     @Parameter(names = { "-reaload_config_ms" }, description = "Config reload period in milliseconds.")
     private long reloadConfigMs = 30000;
     @Parameter(names = { "-sync_files_ms" }, description = "Log files sync period in milliseconds.")
     private long filesSyncMs = 5000;
+    @Parameter(names = { "-incremental" }, description = "Whether to ship the active log file incrementally, by appended lines only.")
+    private boolean isIncremental = false;
+    @Parameter(names = { "-part_concurrency" }, description = "Max number of parts of a single file uploaded concurrently.")
+    private int partConcurrency = 4;
+    @Parameter(names = { "-max_upload_bytes_per_sec" }, description = "Max upload bandwidth of all JVMs in bytes per second, 0 means no limit.")
+    private long maxUploadBytesPerSec = 0;
+    @Parameter(names = { "-max_jvm_upload_bytes_per_sec" }, description = "Max upload bandwidth of a single JVM in bytes per second, 0 means no limit.")
+    private long maxJvmUploadBytesPerSec = 0;
+    @Parameter(names = { "-watch_threads" }, description = "Number of threads, which process the file changes of all JVMs.")
+    private int watchThreads = Runtime.getRuntime().availableProcessors();
+    @Parameter(names = { "-watch_debounce_ms" }, description = "Window in milliseconds, within which changes of the same file are coalesced.")
+    private long watchDebounceMs = 1000;
+    @Parameter(names = { "-upload_queue_size" }, description = "Max number of files waiting for upload, file sync is paused when it's reached.")
+    private int uploadQueueSize = 1024;
+    @Parameter(names = { "-upload_max_attempts" }, description = "Max number of failed uploads of a file, after which it's moved to the dead-letter dir in -data_dir.")
+    private int uploadMaxAttempts = 20;
+    @Parameter(names = { "-batch_bytes" }, description = "Files smaller than this are uploaded in batches of up to this size, 0 disables batching.")
+    private long batchBytes = 0;
+    @Parameter(names = { "-batch_age_ms" }, description = "Max time in milliseconds a file waits for its batch to fill up.")
+    private long batchAgeMs = 60000;
+    @Parameter(names = { "-compression_level" }, description = "Gzip compression level, from 1 (fastest) to 9 (smallest).")
+    private int compressionLevel = 6;
+    @Parameter(names = { "-upload_format" }, description = "What to upload: raw (gzipped logs), events (compact stream of parsed GC events) or both.")
+    private String uploadFormat = "raw";
+    @Parameter(names = { "-skip_undated_logs" }, description = "Whether to skip the logs without wall clock timestamps, e.g. of -XX:+PrintGCTimeStamps or the default -Xlog:gc, instead of uploading them.")
+    private boolean skipUndatedLogs = false;
+    @Parameter(names = { "-direct_upload" }, description = "Whether to compress the complete log files straight into the storage, without their copy in -data_dir. The copy is still made while the storage is unavailable.")
+    private boolean directUpload = false;
+    @Parameter(names = { "-memory_budget_mb" }, description = "Max memory in MB of the buffers and compressors of all JVMs, the work beyond it waits.")
+    private int memoryBudgetMb = 32;
+    @Parameter(names = { "-compression_threads" }, description = "Number of threads used to compress large files.")
+    private int compressionThreads = Runtime.getRuntime().availableProcessors();
+    @Parameter(names = { "-metrics_port" }, description = "Local port of the Prometheus metrics endpoint, 0 disables it.")
+    private int metricsPort = 0;
+    @Parameter(names = { "-import_dir" }, description = "Imports the archived logs of this directory tree and exits, instead of watching the logs dirs.")
+    private String importDir;
+    @Parameter(names = { "-import_jvm_id" }, description = "JVM ID of the imported logs, the first of -jvm_ids by default.")
+    private String importJvmId;
+    @Parameter(names = { "-import_threads" }, description = "Number of threads, which read and compress the imported files.")
+    private int importThreads = Runtime.getRuntime().availableProcessors();
+    @Parameter(names = { "-api_timeout_ms" }, description = "Connect and read timeout of the GCPlot API calls in milliseconds.")
+    private int apiTimeoutMs = 10000;
+    @Parameter(names = { "-api_retries" }, description = "Max number of retries of a failed GCPlot API call.")
+    private int apiRetries = 3;
     @Parameter(names = { "-ttl" })
     private long ttl = TimeUnit.DAYS.toMillis(14);
     @Parameter(names = { "-version" }, required = true)
     private String version;
 
-    private CloseableHttpClient httpclient = HttpClients.createDefault();
-    private ScheduledExecutorService configurationReloader = Executors.newSingleThreadScheduledExecutor();
-    private ScheduledExecutorService conductorExecutor = Executors.newSingleThreadScheduledExecutor();
-    private ScheduledExecutorService ttlExecutor = Executors.newSingleThreadScheduledExecutor();
+    private volatile GcplotClient gcplotClient;
+    private volatile String accountId;
+    private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private ExecutorService watcherExecutor = Executors.newSingleThreadExecutor();
+    private ScheduledExecutorService batchExecutor = Executors.newSingleThreadScheduledExecutor();
     private ExecutorService listenerExecutor;
-    private ExecutorService uploadExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 4);
-    private Cache<String, Long> lastModifiedCache = CacheBuilder.newBuilder().maximumSize(10000).build();
+    private final ConcurrentMap<String, SerialExecutor> jvmExecutors = new ConcurrentHashMap<String, SerialExecutor>();
+    private final ConcurrentMap<String, File> jvms = new ConcurrentHashMap<String, File>();
+    private DirectoryWatcher directoryWatcher;
+    private int uploadThreads = Runtime.getRuntime().availableProcessors() * 4;
+    private ExecutorService uploadExecutor = Executors.newFixedThreadPool(uploadThreads);
+    private ExecutorService partExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 10);
+    private StateJournal stateJournal;
+    private UploadIndex uploadIndex;
+    private BufferPool bufferPool;
+    private UploadScheduler uploadScheduler;
+    private SegmentBatcher segmentBatcher;
+    private ExecutorService compressExecutor;
+    private LogTailer logTailer;
+    private LogSpooler logSpooler;
+    private UploadThrottle uploadThrottle;
     private volatile S3ResourceManager s3ResourceManager;
+    private volatile long directUploadPausedUntil;
 
     public void run() throws Exception {
         try {
@@ -84,238 +144,488 @@ public class Bootstrap {
                 LOG.warn("Latest GCPC version is {}, while you have {}. Please consider updating.", version, this.version);
             }
         } catch (Throwable ignored) {}
-        if (!new File(dataDir + UPLOAD_DIR).exists()) {
-            new File(dataDir + UPLOAD_DIR).mkdir();
-        }
+        init();
         loadAnalyze();
-        final List<String> jvmIds = Splitter.on(",").splitToList(jvmIdsStr);
-        final List<String> logsDirs = Splitter.on(",").splitToList(logsDirsStr);
-        if (logsDirs.size() < jvmIds.size()) {
-            throw new IllegalArgumentException(String.format("JVM ids [%s] and Logs Dirs [%s] mismatch! Aborting.",
-                    jvmIdsStr, logsDirsStr));
-        }
-        listenerExecutor = Executors.newFixedThreadPool(jvmIds.size());
-        configurationReloader.scheduleAtFixedRate(new Runnable() {
+        List<String> jvmIds = Collections.emptyList();
+        List<String> logsDirs = Collections.emptyList();
+        if (Strings.isNullOrEmpty(logsPattern)) {
+            if (Strings.isNullOrEmpty(jvmIdsStr) || Strings.isNullOrEmpty(logsDirsStr)) {
+                throw new IllegalArgumentException("Either -jvm_ids and -logs_dirs, or -logs_pattern should be set.");
+            }
+            jvmIds = Splitter.on(",").splitToList(jvmIdsStr);
+            logsDirs = Splitter.on(",").splitToList(logsDirsStr);
+            if (logsDirs.size() < jvmIds.size()) {
+                throw new IllegalArgumentException(String.format("JVM ids [%s] and Logs Dirs [%s] mismatch! Aborting.",
+                        jvmIdsStr, logsDirsStr));
+            }
+        }
+        if (batchBytes > 0) {
+            segmentBatcher = new SegmentBatcher(batchBytes, batchAgeMs, new SegmentBatcher.Listener() {
+                @Override
+                public void onBatch(String jvmId, File batch, List<File> members) throws Exception {
+                    // the members are dropped once the batch is uploaded
+                    uploadScheduler.submit(jvmId, batch, true);
+                }
+            });
+            // submitting a batch blocks while the upload queue is full, so it's not done on the shared scheduler
+            batchExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    segmentBatcher.flushReady();
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+        uploadScheduler.start();
+        registerMetrics();
+        // all JVMs share the watcher thread and the listener pool, while the work of every single
+        // JVM is done in order on its own serial executor, as it was done on a dedicated thread before
+        listenerExecutor = Executors.newFixedThreadPool(Math.max(1, watchThreads));
+        directoryWatcher = new DirectoryWatcher(watchDebounceMs);
+        watcherExecutor.submit(directoryWatcher);
+        scheduler.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
                 LOG.debug("Reloading configuration started.");
+                long start = System.nanoTime();
                 try {
                     loadAnalyze();
                 } catch (Throwable t) {
                     LOG.error(t.getMessage(), t);
                 } finally {
+                    Metrics.RELOAD_LATENCY.observeSince(start);
                     LOG.debug("Reloading configuration completed.");
                 }
             }
         }, reloadConfigMs, reloadConfigMs, TimeUnit.MILLISECONDS);
-        for (int i = 0; i < jvmIds.size(); i++) {
-            final String jvmId = jvmIds.get(i);
-            final String logsDir = logsDirs.get(i);
-            listenerExecutor.submit(new Runnable() {
+        if (Strings.isNullOrEmpty(logsPattern)) {
+            for (int i = 0; i < jvmIds.size(); i++) {
+                addJvm(jvmIds.get(i), new File(logsDirs.get(i)));
+            }
+        } else {
+            final JvmDiscovery discovery = new JvmDiscovery(logsPattern);
+            LOG.info("Discovering logs dirs by [{}].", logsPattern);
+            scheduler.scheduleWithFixedDelay(new Runnable() {
                 @Override
                 public void run() {
-                    LOG.info("Starting directory [{}] watcher daemon for JVM [{}].", logsDir, jvmId);
                     try {
-                        LOG.debug("Registering watcher on {}", logsDir);
-                        FileSystemManager fsManager = VFS.getManager();
-                        FileObject listendir = fsManager.resolveFile(logsDir);
-                        DefaultFileMonitor fm = new DefaultFileMonitor(new FileListener() {
-                            @Override
-                            public void fileCreated(FileChangeEvent event) throws Exception {
-                                LOG.debug("Directory Watcher: Received notify about '{}' with kind ENTRY_CREATE", event.getFile().getName().getBaseName());
-                                process(new File(event.getFile().getName().getPath()));
-                            }
-
-                            @Override
-                            public void fileDeleted(FileChangeEvent event) throws Exception {
-                                // just ignore
+                        Map<String, File> found = discovery.discover();
+                        for (Map.Entry<String, File> e : new ArrayList<Map.Entry<String, File>>(jvms.entrySet())) {
+                            // a recreated dir has to be watched again
+                            if (!e.getValue().equals(found.get(e.getKey())) || !directoryWatcher.isWatched(e.getValue())) {
+                                removeJvm(e.getKey());
                             }
-
-                            @Override
-                            public void fileChanged(FileChangeEvent event) throws Exception {
-                                LOG.debug("Directory Watcher: Received notify about '{}' with kind ENTRY_MODIFY", event.getFile().getName().getBaseName());
-                                process(new File(event.getFile().getName().getPath()));
-                            }
-
-                            private synchronized void process(File f) {
-                                try {
-                                    if (!extensionMatches(f)) {
-                                        LOG.debug("Directory Watcher: Extension doesn't match for {}", f.getName());
-                                    }
-                                    syncFiles(f, logsDir, jvmId);
-                                } catch (Throwable t) {
-                                    LOG.error(t.getMessage(), t);
-                                }
+                        }
+                        for (Map.Entry<String, File> e : found.entrySet()) {
+                            if (!jvms.containsKey(e.getKey())) {
+                                addJvm(e.getKey(), e.getValue());
                             }
-                        });
-                        fm.setRecursive(true);
-                        fm.addFile(listendir);
-                        fm.start();
-                        Thread.sleep(Long.MAX_VALUE);
+                        }
                     } catch (Throwable t) {
                         LOG.error(t.getMessage(), t);
-                    } finally {
-                        LOG.info("Stopping directory watcher daemon.");
                     }
                 }
-            });
+            }, 0, discoveryMs, TimeUnit.MILLISECONDS);
         }
-        conductorExecutor.scheduleAtFixedRate(new Runnable() {
+        scheduler.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
-                LOG.debug("Conductor process started.");
-                for (int i = 0; i < jvmIds.size(); i++) {
-                    try {
-                        final String jvmId = jvmIds.get(i);
-                        File target = new File(dataDir + UPLOAD_DIR + "/" + jvmId);
-                        if (!target.exists()) {
-                            target.mkdirs();
-                        }
-                        List<File> files = new ArrayList<File>(FileUtils.listFiles(target, null, false));
-                        for (final File f : files) {
-                            LOG.debug("Conductor {}: Checking {}", jvmId, f.getName());
+                try {
+                    stateJournal.sync();
+                    uploadScheduler.sync();
+                    uploadIndex.sync();
+                } catch (Throwable t) {
+                    LOG.error(t.getMessage(), t);
+                }
+            }
+        }, filesSyncMs, filesSyncMs, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                LOG.debug("TTL process started.");
+                Map<String, List<String>> keysByJvm = new HashMap<String, List<String>>();
+                for (String key : stateJournal.keys()) {
+                    String jvmId = key.substring(0, Math.max(0, key.indexOf('/')));
+                    List<String> keys = keysByJvm.get(jvmId);
+                    if (keys == null) {
+                        keys = new ArrayList<String>();
+                        keysByJvm.put(jvmId, keys);
+                    }
+                    keys.add(key);
+                }
+                for (Map.Entry<String, File> e : jvms.entrySet()) {
+                    final String jvmId = e.getKey();
+                    final File logsDir = e.getValue();
+                    final List<String> keys = keysByJvm.get(jvmId);
+                    if (keys == null) {
+                        continue;
+                    }
+                    jvmExecutor(jvmId).execute(new Runnable() {
+                        @Override
+                        public void run() {
                             try {
-                                if (f.getName().endsWith(".progress")) {
-                                    continue;
-                                }
-                                final File inProgress = new File(f.getParent(), f.getName() + ".progress");
-                                if (f.length() > 0 && !inProgress.exists()) {
-                                    inProgress.createNewFile();
-
-                                    uploadExecutor.submit(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            try {
-                                                S3ResourceManager rm = s3ResourceManager;
-                                                if (rm != null) {
-                                                    if (!isTimestampedOnly(f)) {
-                                                        LOG.debug("Uploading {}: {}", jvmId, f.getName());
-                                                        rm.upload(f, jvmId);
-                                                    } else {
-                                                        LOG.error("Conductor ERROR: Log File {} doesn't contain datestamps," +
-                                                                " can't process it. Consider using -XX:+PrintGCDateStamps flag.", f.getName());
-                                                    }
-                                                    zero(f);
-                                                } else {
-                                                    LOG.debug("Not uploading {}: {}", jvmId, f.getName());
-                                                    zero(f);
-                                                }
-                                                FileUtils.deleteQuietly(inProgress);
-                                            } catch (Throwable t) {
-                                                LOG.error(t.getMessage(), t);
-                                            }
-                                        }
-                                    });
+                                for (String key : keys) {
+                                    SourceState state = stateJournal.get(key);
+                                    String name = state != null && state.getName() != null ? state.getName()
+                                            : key.substring(jvmId.length() + 1);
+                                    File f = new File(logsDir, name);
+                                    if (!f.exists() || !key.equals(stateKey(jvmId, f))) {
+                                        LOG.debug("TTL: forgetting state of {}", key);
+                                        stateJournal.remove(key);
+                                    }
                                 }
                             } catch (Throwable t) {
                                 LOG.error(t.getMessage(), t);
                             }
                         }
-                    } catch (Throwable t) {
-                        LOG.error(t.getMessage(), t);
-                    } finally {
-                        LOG.debug("Conductor process finished.");
+                    });
+                }
+                try {
+                    uploadIndex.expire();
+                } catch (Throwable t) {
+                    LOG.error(t.getMessage(), t);
+                } finally {
+                    LOG.debug("TTL process finished.");
+                }
+            }
+        }, 30, 30, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Starts watching the logs dir of the JVM, after its files left from the previous run are scheduled.
+     */
+    private void addJvm(final String jvmId, final File logsDir) throws IOException {
+        LOG.info("Starting directory [{}] watcher for JVM [{}].", logsDir, jvmId);
+        jvms.put(jvmId, logsDir);
+        SerialExecutor executor = jvmExecutor(jvmId);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    schedulePending(jvmId);
+                } catch (Throwable t) {
+                    LOG.error(t.getMessage(), t);
+                }
+            }
+        });
+        directoryWatcher.register(logsDir, executor, new DirectoryWatcher.Listener() {
+            @Override
+            public void onChange(File f) {
+                if (!extensionMatches(f)) {
+                    LOG.debug("Directory Watcher: Extension doesn't match for {}", f.getName());
+                } else if (isActive(f)) {
+                    if (isIncremental) {
+                        tail(f, jvmId);
+                    } else {
+                        LOG.debug("Directory Watcher: {} is active, it will be synced after rotation.", f.getName());
                     }
+                } else {
+                    checkAndScheduleForUpload(f, jvmId);
                 }
             }
-        }, filesSyncMs, filesSyncMs, TimeUnit.MILLISECONDS);
-        ttlExecutor.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void onRescan() {
+                try {
+                    syncFiles(logsDir.getPath(), jvmId);
+                } catch (Throwable t) {
+                    LOG.error(t.getMessage(), t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops watching the logs dir of the JVM and, once its queued work is done, forgets its state. The files
+     * already spooled are still uploaded.
+     */
+    private void removeJvm(final String jvmId) {
+        File logsDir = jvms.remove(jvmId);
+        if (logsDir == null) {
+            return;
+        }
+        LOG.info("Logs dir [{}] of JVM [{}] is gone, stopping its watcher.", logsDir, jvmId);
+        directoryWatcher.unregister(logsDir);
+        final SerialExecutor executor = jvmExecutor(jvmId);
+        executor.execute(new Runnable() {
             @Override
             public void run() {
-                for (String jvmId : jvmIds) {
-                    try {
-                        LOG.debug("TTL process started.");
-                        File target = new File(dataDir + UPLOAD_DIR + "/" + jvmId);
-                        if (!target.exists()) {
-                            target.mkdirs();
-                        }
-                        List<File> files = new ArrayList<File>(FileUtils.listFiles(target, null, false));
-                        for (File f : files) {
-                            if (f.length() == 0 && !f.getName().endsWith(".progress")) {
-                                long lm = f.lastModified();
-                                if (lm > 0 && System.currentTimeMillis() - lm > ttl) {
-                                    LOG.debug("TTL: deleting {}", f);
-                                    FileUtils.deleteQuietly(f);
-                                }
-                            }
+                if (jvms.containsKey(jvmId)) {
+                    // came back meanwhile
+                    return;
+                }
+                jvmExecutors.remove(jvmId, executor);
+                uploadThrottle.release(jvmId);
+                try {
+                    for (String key : new ArrayList<String>(stateJournal.keys())) {
+                        if (key.startsWith(jvmId + "/")) {
+                            stateJournal.remove(key);
                         }
-                    } catch (Throwable t) {
-                        LOG.error(t.getMessage(), t);
-                    } finally {
-                        LOG.debug("TTL process finished.");
                     }
+                } catch (Throwable t) {
+                    LOG.error(t.getMessage(), t);
                 }
             }
-        }, 30, 30, TimeUnit.MINUTES);
+        });
+    }
+
+    /**
+     * @return the executor, which runs the work of the JVM one task at a time on the shared listener pool
+     */
+    private SerialExecutor jvmExecutor(String jvmId) {
+        SerialExecutor executor = jvmExecutors.get(jvmId);
+        if (executor == null) {
+            jvmExecutors.putIfAbsent(jvmId, new SerialExecutor(listenerExecutor));
+            executor = jvmExecutors.get(jvmId);
+        }
+        return executor;
     }
 
-    private boolean isTimestampedOnly(File f) throws Exception {
-        InputStream is = new GZIPInputStream(new FileInputStream(f));
+    /**
+     * Imports the archived logs of {@link #importDir} and waits until they are uploaded. Can be
+     * interrupted at any time, the next run continues where this one stopped.
+     *
+     * The import has its own upload dir and WAL, so it can run along with the connector service.
+     *
+     * @return whether all files were imported and uploaded
+     */
+    public boolean importLogs() throws Exception {
+        init(new File(dataDir, IMPORT_WAL), new File(dataDir, IMPORT_INDEX));
+        loadAnalyze();
+        if (s3ResourceManager == null) {
+            throw new IllegalStateException("Analyze Group " + analyzeId + " has no upload destination, aborting import.");
+        }
+        if (Strings.isNullOrEmpty(importJvmId) && Strings.isNullOrEmpty(jvmIdsStr)) {
+            throw new IllegalArgumentException("Either -import_jvm_id or -jvm_ids should be set.");
+        }
+        String jvmId = Strings.isNullOrEmpty(importJvmId) ? Splitter.on(",").splitToList(jvmIdsStr).get(0) : importJvmId;
+        LOG.info("Importing [{}] for JVM [{}].", importDir, jvmId);
+        File uploadDir = new File(dataDir + IMPORT_DIR + "/" + jvmId);
+        uploadDir.mkdirs();
+        uploadScheduler.start();
+        long failed;
+        Importer importer = new Importer(logSpooler, uploadScheduler, new File(dataDir, IMPORT_JOURNAL), importThreads,
+                skipUndatedLogs);
         try {
-            BufferedReader br = new BufferedReader(new InputStreamReader(is));
-            try {
-                int count = 0;
+            failed = importer.run(new File(importDir), jvmId, uploadDir, new FileFilter() {
+                @Override
+                public boolean accept(File f) {
+                    return extensionMatches(f);
+                }
+            });
+        } finally {
+            importer.close();
+        }
+        int pending;
+        while ((pending = uploadScheduler.pending()) > 0) {
+            LOG.info("Import: waiting for {} uploads.", pending);
+            Thread.sleep(5000);
+        }
+        int notUploaded = 0;
+        for (File f : FileUtils.listFiles(uploadDir, null, false)) {
+            if (f.length() > 0 && !f.getName().endsWith(LogTailer.TEMP_SUFFIX)) {
+                notUploaded++;
+            }
+        }
+        if (uploadScheduler.deadLettered() > 0) {
+            LOG.warn("Import: uploads of {} files failed for good, they were moved to {}.",
+                    uploadScheduler.deadLettered(), new File(dataDir, DEAD_LETTER_DIR));
+        }
+        if (failed > 0 || notUploaded > 0 || uploadScheduler.deadLettered() > 0) {
+            LOG.warn("Import: {} files failed and {} weren't uploaded, run the import again to retry them.",
+                    failed, notUploaded);
+            return false;
+        }
+        LOG.info("Import of [{}] completed.", importDir);
+        return true;
+    }
 
-                String str;
-                while (count <= TIMESTAMP_FIND_LIMIT && (str = br.readLine()) != null) {
-                    count++;
-                    if (str.matches(TIMESTAMP_PATTERN)) {
-                        return true;
+    /**
+     * Prepares the local part of the pipeline: spool, journals and upload queue.
+     */
+    void init() throws Exception {
+        // the state journal is only opened by the service, an import running along would rewrite it
+        stateJournal = new StateJournal(new File(dataDir, STATE_JOURNAL));
+        init(new File(dataDir, UPLOAD_WAL), new File(dataDir, UPLOAD_INDEX));
+    }
+
+    private void init(File uploadWal, File uploadIndexFile) throws Exception {
+        if (!new File(dataDir + UPLOAD_DIR).exists()) {
+            new File(dataDir + UPLOAD_DIR).mkdir();
+        }
+        if (compressionLevel < Deflater.BEST_SPEED || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be in 1..9, but was " + compressionLevel);
+        }
+        compressExecutor = Executors.newFixedThreadPool(Math.max(1, compressionThreads));
+        if (memoryBudgetMb <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive, but was " + memoryBudgetMb);
+        }
+        bufferPool = new BufferPool(memoryBudgetMb * 1024L * 1024L);
+        Compressor compressor = new Compressor(compressExecutor, bufferPool, compressionThreads, compressionLevel);
+        UploadFormat format = UploadFormat.valueOf(uploadFormat.toUpperCase());
+        logTailer = new LogTailer(compressor, format);
+        logSpooler = new LogSpooler(compressor, format);
+        if (maxUploadBytesPerSec < 0 || maxJvmUploadBytesPerSec < 0) {
+            throw new IllegalArgumentException("Upload bandwidth limits can't be negative.");
+        }
+        uploadThrottle = new UploadThrottle(maxUploadBytesPerSec, maxJvmUploadBytesPerSec);
+        uploadIndex = new UploadIndex(uploadIndexFile, ttl);
+        uploadScheduler = new UploadScheduler(uploadWal, new File(dataDir, DEAD_LETTER_DIR), uploadQueueSize,
+                uploadMaxAttempts, uploadExecutor, uploadThreads, new UploadScheduler.Handler() {
+            @Override
+            public void upload(String jvmId, File f) throws Exception {
+                if (!FileUtils.directoryContains(new File(dataDir), f)) {
+                    // a source log of -direct_upload
+                    directUpload(jvmId, f);
+                    return;
+                }
+                if (uploadIndex.contains(jvmId, f.getName())) {
+                    LOG.debug("Already uploaded {}: {}", jvmId, f.getName());
+                    FileUtils.deleteQuietly(f);
+                    return;
+                }
+                S3ResourceManager rm = s3ResourceManager;
+                if (rm != null) {
+                    if (segmentBatcher != null && segmentBatcher.add(jvmId, f)) {
+                        LOG.debug("Batching {}: {}", jvmId, f.getName());
+                        return;
                     }
+                    LOG.debug("Uploading {}: {}", jvmId, f.getName());
+                    rm.upload(f, jvmId);
+                } else {
+                    LOG.debug("Not uploading {}: {}", jvmId, f.getName());
+                }
+                if (SegmentBatcher.isBatch(f)) {
+                    for (File member : SegmentBatcher.members(f)) {
+                        uploaded(jvmId, member);
+                    }
+                }
+                uploaded(jvmId, f);
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (stateJournal != null) {
+                        stateJournal.close();
+                    }
+                    uploadScheduler.close();
+                    uploadIndex.close();
+                    client().close();
+                } catch (Throwable t) {
+                    LOG.error(t.getMessage(), t);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return format of the source log, which is detected only once and cached in its state,
+     * or null if there is not enough lines to tell yet
+     */
+    GcLogFormat detectFormat(File f, SourceState state) throws IOException {
+        GcLogFormat format;
+        synchronized (state) {
+            format = state.getFormat();
+        }
+        if (format == null) {
+            format = GcLogSniffer.sniff(f, isGzipped(f), !isActive(f));
+            if (format != null) {
+                LOG.debug("Detected {} format of {}.", format, f.getName());
+                if (isSkipped(format)) {
+                    LOG.error("Conductor ERROR: Log File {} doesn't contain datestamps," +
+                            " skipping it. Consider using {}.", f.getName(), format.getFix());
+                } else if (!format.isSupported()) {
+                    LOG.warn("Log File {} doesn't contain datestamps, it may not be processed." +
+                            " Consider using {}.", f.getName(), format.getFix());
+                }
+                synchronized (state) {
+                    state.setFormat(format);
                 }
-            } finally {
-                br.close();
             }
-        } finally {
-            is.close();
         }
-        return false;
+        return format;
+    }
+
+    /**
+     * @return whether the logs of the format are not uploaded, as they can't be processed
+     */
+    private boolean isSkipped(GcLogFormat format) {
+        return skipUndatedLogs && format != null && !format.isSupported();
     }
 
-    private void checkAndScheduleForUpload(final File f, String jvmId) {
+    void checkAndScheduleForUpload(final File f, String jvmId) {
+        Metrics.FILES_SCANNED.inc();
         try {
-            Long lastModified = lastModifiedCache.getIfPresent(f.getName());
+            String key = stateKey(jvmId, f);
+            SourceState state = state(jvmId, f, key);
             long fileLastModified = f.lastModified();
-            if (lastModified == null || lastModified == 0 || fileLastModified == 0
-                    || lastModified != fileLastModified) {
-                String hex;
-                FileInputStream fis = new FileInputStream(f);
-                try {
-                    if (isGzipped(f)) {
-                        hex = DigestUtils.sha1Hex(new GZIPInputStream(fis));
-                    } else {
-                        hex = DigestUtils.sha1Hex(fis);
+            long fileLength = f.length();
+            if ((state.getFingerprint() == null && !isSkipped(state.getFormat())) || fileLastModified == 0
+                    || state.getLastModified() != fileLastModified || state.getLength() != fileLength) {
+                String quickFingerprint = FileIdentity.fingerprint(f, fileLength);
+                if (state.getFingerprint() != null && state.getLength() == fileLength
+                        && quickFingerprint.equals(state.getQuickFingerprint())) {
+                    // touched only, e.g. by a backup tool, so there is no need to read it whole
+                    LOG.debug("Skipping {}, as only its [lastModified={}] changed.", f.getName(), fileLastModified);
+                    synchronized (state) {
+                        state.setLastModified(fileLastModified);
                     }
-                } finally {
-                    fis.close();
+                    stateJournal.put(key, state);
+                    return;
                 }
-                String fileName = hex + ".log.gz";
-                String dr = dataDir + UPLOAD_DIR + "/" + jvmId;
-                if (!new File(dr).exists()) {
-                    new File(dr).mkdirs();
+                String hex = null;
+                if (!isActive(f) && state.getStreamId() == null && state.getFingerprint() == null) {
+                    adoptStream(jvmId, key, f, state);
                 }
-                File target = new File(dr, fileName);
-                if (!target.exists()) {
-                    LOG.debug("File Sync: Copying {} to {}", f.getName(), fileName);
-                    GZIPOutputStream gos = new GZIPOutputStream(new FileOutputStream(target));
-                    try {
-                        if (isGzipped(f)) {
-                            GZIPInputStream gzip = new GZIPInputStream(new FileInputStream(f));
-                            try {
-                                IOUtils.copy(gzip, gos);
-                            } finally {
-                                gzip.close();
-                            }
+                List<File> segments = null;
+                if (!isActive(f) && state.getStreamId() != null && state.getFingerprint() == null) {
+                    // the active file, which was shipped incrementally, is rotated, so only its rest is left
+                    GcLogFormat format = detectFormat(f, state);
+                    if (!isSkipped(format)) {
+                        segments = finish(f, jvmId, state);
+                    } else {
+                        segments = Collections.emptyList();
+                    }
+                    if (segments != null) {
+                        for (File segment : segments) {
+                            uploadScheduler.submit(jvmId, segment, true);
+                        }
+                        hex = state.getStreamId();
+                    } else {
+                        LOG.warn("{} is shorter than its shipped stream, shipping it whole.", f.getName());
+                        synchronized (state) {
+                            state.setStreamId(null);
+                            state.setOffset(0);
+                            state.setHead(null);
+                            state.setParser(null);
+                        }
+                    }
+                }
+                if (segments == null) {
+                    if (!isActive(f) || fileLength < state.getLength()) {
+                        // rotated files are immutable, so the change means it's another log now
+                        synchronized (state) {
+                            state.setFormat(null);
+                        }
+                    }
+                    GcLogFormat format = detectFormat(f, state);
+                    if (!isSkipped(format)) {
+                        if (isDirectUpload(s3ResourceManager)) {
+                            // the fingerprint is recorded by the upload worker, once it's known
+                            uploadScheduler.submit(jvmId, f, isActive(f));
                         } else {
-                            FileUtils.copyFile(f, gos);
+                            hex = spool(f, jvmId);
                         }
-                    } finally {
-                        gos.close();
                     }
-                } else {
-                    LOG.debug("File Sync: {} already exists, {}.", fileName, fileLastModified);
                 }
-                lastModifiedCache.put(f.getName(), fileLastModified);
+                synchronized (state) {
+                    state.setLength(fileLength);
+                    state.setLastModified(fileLastModified);
+                    state.setFingerprint(hex);
+                    state.setQuickFingerprint(quickFingerprint);
+                }
+                stateJournal.put(key, state);
             } else {
                 LOG.debug("Skipping {}, as its [lastModified={}] didn't changed.", f.getName(), fileLastModified);
             }
@@ -324,16 +634,348 @@ public class Bootstrap {
         }
     }
 
-    private void syncFiles(File f, String logsDir, String jvmId) throws IOException {
+    /**
+     * Finds the stream, which was shipped from the active file before it was rotated into {@code f} under
+     * another identity, e.g. compressed, or on a file system without file keys, where the active file is
+     * keyed by its name. The stream is matched by its head, and it's moved to the state of {@code f},
+     * unless the head is still the one of the active file. Streams, which were finished already, are
+     * copied, so the file doesn't ship what the other copy of the rotated file did.
+     */
+    private void adoptStream(String jvmId, String key, File f, SourceState state) throws IOException {
+        for (String other : new ArrayList<String>(stateJournal.keys())) {
+            SourceState candidate = stateJournal.get(other);
+            if (other.equals(key) || !other.startsWith(jvmId + "/") || candidate == null) {
+                continue;
+            }
+            String streamId;
+            String head;
+            String name;
+            boolean finished;
+            synchronized (candidate) {
+                streamId = candidate.getStreamId();
+                head = candidate.getHead();
+                name = candidate.getName();
+                finished = candidate.getFingerprint() != null;
+            }
+            if (streamId == null || head == null) {
+                continue;
+            }
+            int headLength = FileIdentity.headLength(head);
+            try {
+                if (!head.equals(FileIdentity.head(f, isGzipped(f), headLength))) {
+                    continue;
+                }
+                File active = name == null ? null : new File(f.getParentFile(), name);
+                if (active != null && isActive(active) && active.exists()
+                        && head.equals(FileIdentity.head(active, false, headLength))) {
+                    LOG.debug("{} has the head of the active {}, can't tell them apart.", f.getName(), name);
+                    return;
+                }
+            } catch (IOException e) {
+                LOG.debug("Unable to read the head of {}: {}", f.getName(), e.getMessage());
+                return;
+            }
+            LOG.debug("{} continues the stream {} of {}", f.getName(), streamId, other);
+            synchronized (candidate) {
+                synchronized (state) {
+                    state.setStreamId(candidate.getStreamId());
+                    state.setOffset(candidate.getOffset());
+                    state.setHead(candidate.getHead());
+                    state.setFormat(candidate.getFormat());
+                    state.setParser(candidate.getParser());
+                }
+            }
+            if (!finished) {
+                // the stream of the former active file continues only here
+                stateJournal.remove(other);
+            }
+            stateJournal.put(key, state);
+            return;
+        }
+    }
+
+    /**
+     * Copies the file into the upload dir and schedules the copy for upload.
+     *
+     * @return SHA1 hex of the content
+     */
+    private String spool(File f, String jvmId) throws IOException, InterruptedException {
+        String hex = logSpooler.spool(f, uploadDir(jvmId));
+        // rotated files are the backfill, while the active one is the fresh data
+        boolean live = isActive(f);
+        uploadScheduler.submit(jvmId, new File(uploadDir(jvmId), hex + SegmentWriter.RAW_SUFFIX), live);
+        uploadScheduler.submit(jvmId, new File(uploadDir(jvmId), hex + SegmentWriter.EVENTS_SUFFIX), live);
+        return hex;
+    }
+
+    /**
+     * @return whether the complete files are uploaded without their copy in the upload dir, as enabled by
+     * -direct_upload, unless such an upload failed in the last {@link #DIRECT_UPLOAD_PAUSE_MS}
+     */
+    private boolean isDirectUpload(S3ResourceManager rm) {
+        return directUpload && rm != null && System.currentTimeMillis() >= directUploadPausedUntil;
+    }
+
+    /**
+     * Uploads the source file, which was scheduled by -direct_upload, on the upload worker, and then records
+     * its fingerprint on the executor of the JVM. Once such an upload fails, the file is spooled there instead,
+     * and the files are spooled for {@link #DIRECT_UPLOAD_PAUSE_MS}, so that they wait in the upload queue
+     * until the storage is available again.
+     */
+    private void directUpload(final String jvmId, final File f) throws InterruptedException {
+        S3ResourceManager rm = s3ResourceManager;
+        if (isDirectUpload(rm)) {
+            try {
+                final String hex = logSpooler.upload(f, rm, jvmId, uploadIndex);
+                jvmExecutor(jvmId).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        shipped(jvmId, f, hex);
+                    }
+                });
+                return;
+            } catch (InterruptedIOException e) {
+                throw new InterruptedException(e.getMessage());
+            } catch (Throwable t) {
+                LOG.warn("Direct upload of {} failed, spooling it instead: {}", f.getName(), t.getMessage());
+                Metrics.DIRECT_UPLOAD_FALLBACKS.inc();
+                directUploadPausedUntil = System.currentTimeMillis() + DIRECT_UPLOAD_PAUSE_MS;
+            }
+        }
+        jvmExecutor(jvmId).execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!f.exists()) {
+                    return;
+                }
+                try {
+                    shipped(jvmId, f, spool(f, jvmId));
+                } catch (Throwable t) {
+                    LOG.error(t.getMessage(), t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records the fingerprint of the file shipped by {@link #directUpload(String, File)}, unless the JVM
+     * was removed meanwhile, along with its state.
+     */
+    private void shipped(String jvmId, File f, String hex) {
+        if (!jvms.containsKey(jvmId)) {
+            return;
+        }
+        try {
+            String key = stateKey(jvmId, f);
+            SourceState state = state(jvmId, f, key);
+            synchronized (state) {
+                state.setFingerprint(hex);
+            }
+            stateJournal.put(key, state);
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+        }
+    }
+
+    private void tail(File f, String jvmId) {
+        try {
+            String key = stateKey(jvmId, f);
+            SourceState state = state(jvmId, f, key);
+            synchronized (state) {
+                if (f.length() < state.getOffset()) {
+                    // recreated by the restarted JVM, which could change the logging flags
+                    state.setFormat(null);
+                }
+            }
+            GcLogFormat format = detectFormat(f, state);
+            if (isSkipped(format)) {
+                return;
+            }
+            long offset;
+            synchronized (state) {
+                offset = state.getOffset();
+            }
+            List<File> segments;
+            // the memory may take a while, so it's reserved before the state is locked
+            LogTailer.Reservation reservation = logTailer.reserve(f, offset);
+            try {
+                synchronized (state) {
+                    segments = logTailer.tail(f, state, uploadDir(jvmId), reservation);
+                }
+            } finally {
+                reservation.release();
+            }
+            if (!segments.isEmpty()) {
+                stateJournal.put(key, state);
+                for (File segment : segments) {
+                    uploadScheduler.submit(jvmId, segment, true);
+                }
+            } else {
+                LOG.debug("Tail: nothing new in {}.", f.getName());
+            }
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+        }
+    }
+
+    /**
+     * Ships the rest of the rotated file, like {@link #tail(File, String)} does.
+     *
+     * @return the segments, or null if the file is shorter than its shipped stream
+     */
+    private List<File> finish(File f, String jvmId, SourceState state) throws IOException {
+        long offset;
+        synchronized (state) {
+            offset = state.getOffset();
+        }
+        LogTailer.Reservation reservation = logTailer.reserve(f, offset);
+        try {
+            synchronized (state) {
+                return logTailer.finish(f, state, uploadDir(jvmId), reservation);
+            }
+        } finally {
+            reservation.release();
+        }
+    }
+
+    /**
+     * Schedules the files, which were spooled but not uploaded by the previous run.
+     */
+    private void schedulePending(String jvmId) throws Exception {
+        List<File> files = new ArrayList<File>(FileUtils.listFiles(uploadDir(jvmId), null, false));
+        Set<File> batched = new HashSet<File>();
+        for (File f : files) {
+            if (SegmentBatcher.isBatch(f) && f.length() > 0) {
+                batched.addAll(SegmentBatcher.members(f));
+            }
+        }
+        for (File f : files) {
+            if (batched.contains(f)) {
+                LOG.debug("{} is in a pending batch.", f.getName());
+            } else if (f.getName().endsWith(".progress")) {
+                // markers of the previous versions
+                FileUtils.deleteQuietly(f);
+            } else if (!f.getName().endsWith(LogTailer.TEMP_SUFFIX)) {
+                if (f.length() == 0) {
+                    // tombstones of the previous versions
+                    uploaded(jvmId, f);
+                } else {
+                    uploadScheduler.submit(jvmId, f, false);
+                }
+            }
+        }
+    }
+
+    private void registerMetrics() throws IOException {
+        Metrics.gauge("upload_queue_depth", "Files waiting in the upload queue.", new Supplier<Map<String, Double>>() {
+            @Override
+            public Map<String, Double> get() {
+                return Collections.singletonMap("", (double) uploadScheduler.queueSize());
+            }
+        });
+        Metrics.gauge("watched_jvms", "JVMs, which logs dirs are watched.", new Supplier<Map<String, Double>>() {
+            @Override
+            public Map<String, Double> get() {
+                return Collections.singletonMap("", (double) jvms.size());
+            }
+        });
+        Metrics.gauge("memory_reserved_bytes", "Memory reserved in the budget of -memory_budget_mb.",
+                new Supplier<Map<String, Double>>() {
+            @Override
+            public Map<String, Double> get() {
+                return Collections.singletonMap("", (double) bufferPool.getReserved());
+            }
+        });
+        Metrics.gauge("upload_circuit_open", "Whether the uploads are paused, as the destination keeps failing.",
+                new Supplier<Map<String, Double>>() {
+            @Override
+            public Map<String, Double> get() {
+                S3ResourceManager rm = s3ResourceManager;
+                return Collections.singletonMap("", rm != null && rm.isUnavailable() ? 1d : 0d);
+            }
+        });
+        Metrics.gauge("upload_index_entries", "Uploaded files remembered to skip their re-upload.",
+                new Supplier<Map<String, Double>>() {
+            @Override
+            public Map<String, Double> get() {
+                return Collections.singletonMap("", (double) uploadIndex.size());
+            }
+        });
+        Metrics.gauge("unshipped_lag_seconds", "Age of the oldest spooled data, which is not uploaded yet.",
+                new Supplier<Map<String, Double>>() {
+            @Override
+            public Map<String, Double> get() {
+                Map<String, Double> result = new HashMap<String, Double>();
+                long now = System.currentTimeMillis();
+                for (Map.Entry<String, Long> e : uploadScheduler.oldestPending().entrySet()) {
+                    result.put(e.getKey(), Math.max(0, now - e.getValue()) / 1000d);
+                }
+                return result;
+            }
+        });
+        Metrics.registerMBean();
+        if (metricsPort > 0) {
+            Metrics.startHttp(metricsPort);
+        }
+    }
+
+    /**
+     * States are keyed by the {@link FileIdentity}, so that the state follows the file on its renames
+     * by rotation, and it's not read again under the new name.
+     */
+    private String stateKey(String jvmId, File f) throws IOException {
+        String identity = FileIdentity.of(f, isActive(f));
+        return jvmId + "/" + (identity != null ? identity : f.getName());
+    }
+
+    /**
+     * @return the state of the file, with its current name recorded
+     */
+    private SourceState state(String jvmId, File f, String key) throws IOException {
+        SourceState state = stateJournal.get(key);
+        if (state == null) {
+            // the previous versions keyed the states by the file name
+            String nameKey = jvmId + "/" + f.getName();
+            SourceState previous = nameKey.equals(key) ? null : stateJournal.get(nameKey);
+            if (previous != null && previous.getName() == null) {
+                LOG.debug("Moving state of {} to {}", nameKey, key);
+                stateJournal.remove(nameKey);
+                stateJournal.put(key, previous);
+            }
+            state = stateJournal.getOrCreate(key);
+        }
+        if (!f.getName().equals(state.getName())) {
+            LOG.debug("Tracking {} as {}", f.getName(), key);
+            synchronized (state) {
+                state.setName(f.getName());
+            }
+            stateJournal.put(key, state);
+        }
+        return state;
+    }
+
+    private File uploadDir(String jvmId) {
+        File dr = new File(dataDir + UPLOAD_DIR + "/" + jvmId);
+        if (!dr.exists()) {
+            dr.mkdirs();
+        }
+        return dr;
+    }
+
+    private void syncFiles(String logsDir, String jvmId) throws IOException {
         for (File file : new ArrayList<File>(FileUtils.listFiles(new File(logsDir), null, false))) {
-            if (!file.getName().equals(f.getName()) && extensionMatches(file)) {
-                LOG.debug("Checking {} for possible sync.", file.getName());
-                checkAndScheduleForUpload(file, jvmId);
+            if (extensionMatches(file)) {
+                if (isIncremental && isActive(file)) {
+                    tail(file, jvmId);
+                } else {
+                    LOG.debug("Checking {} for possible sync.", file.getName());
+                    checkAndScheduleForUpload(file, jvmId);
+                }
             }
         }
     }
 
-    private boolean extensionMatches(File f) {
+    boolean extensionMatches(File f) {
         return f.getName().contains(extension) &&
                 (f.getName().endsWith(extension)
                         || f.getName().endsWith(extension + ".gz")
@@ -341,13 +983,25 @@ public class Bootstrap {
     }
 
 
+    /**
+     * Whether the file is the one currently being written by the JVM, i.e. not a rotated one.
+     */
+    private boolean isActive(File f) {
+        return f.getName().endsWith(extension);
+    }
+
     private boolean isGzipped(File f) {
         return f.getName().endsWith(".gz");
     }
 
     private void loadAnalyze() throws Exception {
-        String accountId = call(GET_ACCOUNT_ID, Collections.<String, String>emptyMap()).asText();
-        JsonNode analyze = call(GET_ANALYZE, Collections.singletonMap("id", analyzeId));
+        String accountId = this.accountId;
+        if (accountId == null) {
+            // never changes for the token
+            accountId = call(GET_ACCOUNT_ID, Collections.<String, String>emptyMap()).asText();
+            this.accountId = accountId;
+        }
+        JsonNode analyze = client().callCached(uri(GET_ANALYZE, Collections.singletonMap("id", analyzeId)));
         LOG.debug("Account - {}", accountId);
         LOG.debug("Analyze - {}", analyze);
         if (analyze.has("id")) {
@@ -360,10 +1014,10 @@ public class Bootstrap {
 
                 if (sourceType == SourceType.NONE) {
                     LOG.info("Analyze Group {} has none Source Type set.", analyzeId);
-                    s3ResourceManager = null;
+                    replaceResourceManager(null);
                 } else if (sourceType == SourceType.GCS) {
                     LOG.error("Source Type {} is not supported by this version. Consider updating.", sourceTypeStr);
-                    s3ResourceManager = null;
+                    replaceResourceManager(null);
                 } else {
                     reloadResourceManager(accountId, sourceType, props);
                 }
@@ -377,7 +1031,8 @@ public class Bootstrap {
         String basePath;
         S3Connector connector = new S3Connector();
         if (sourceType == SourceType.INTERNAL) {
-            JsonNode internalSettings = call("/connector/internal/settings", Collections.<String, String>emptyMap());
+            JsonNode internalSettings = client().callCached(uri("/connector/internal/settings",
+                    Collections.<String, String>emptyMap()));
             connector.setBucket(internalSettings.get("s3_bucket").asText());
             connector.setRegion(internalSettings.get("s3_region").asText());
             connector.setAccessKey(internalSettings.get("s3_access_key").asText());
@@ -388,12 +1043,28 @@ public class Bootstrap {
             connector.setRegion(props.getProperty("s3.region.id", "us-east-1"));
             connector.setAccessKey(props.getProperty("s3.access_key", ""));
             connector.setSecretKey(props.getProperty("s3.secret_key", ""));
+            connector.setEndpoint(props.getProperty("s3.endpoint", ""));
             basePath = normPath(props.getProperty("s3.prefix", ""));
         } else {
             throw new RuntimeException("Unknown Source Type = " + sourceType);
         }
+        S3ResourceManager current = this.s3ResourceManager;
+        if (current != null && current.hasSameDestination(connector, basePath, accountId)) {
+            LOG.debug("Source config didn't change, keeping the current S3 client.");
+            return;
+        }
+        LOG.info("Source config changed, creating new S3 client for bucket [{}].", connector.getBucket());
         connector.init();
-        this.s3ResourceManager = new S3ResourceManager(connector, basePath, accountId, analyzeId);
+        replaceResourceManager(new S3ResourceManager(connector, partExecutor, partConcurrency, uploadThrottle,
+                basePath, accountId, analyzeId));
+    }
+
+    private void replaceResourceManager(S3ResourceManager rm) {
+        S3ResourceManager old = this.s3ResourceManager;
+        this.s3ResourceManager = rm;
+        if (old != null) {
+            old.retire();
+        }
     }
 
     private String normPath(String basePath) {
@@ -413,26 +1084,40 @@ public class Bootstrap {
     }
 
     public JsonNode call(String path, Map<String, String> params) throws Exception {
+        return client().call(uri(path, params));
+    }
+
+    private URI uri(String path, Map<String, String> params) throws Exception {
         URIBuilder builder = new URIBuilder()
-                .setScheme(isHttps ? "https" : "http")
+                .setScheme(isHttps && !isHttp ? "https" : "http")
                 .setHost(gcpHost)
                 .setPath(path)
                 .setParameter("token", token);
         for (Map.Entry<String, String> i : params.entrySet()) {
             builder.addParameter(i.getKey(), i.getValue());
         }
-        HttpGet get = new HttpGet(builder.build());
-        LOG.debug("Calling {}", get);
-        CloseableHttpResponse resp = httpclient.execute(get);
-        return JSON_FACTORY.readTree(resp.getEntity().getContent()).get("result");
+        return builder.build();
     }
 
-    private void zero(File file) {
-        try {
-            LOG.debug("Zeroing {}", file.getName());
-            FileUtils.write(file, "", "UTF-8");
-        } catch (IOException ignored) {
+    private GcplotClient client() {
+        if (gcplotClient == null) {
+            synchronized (this) {
+                if (gcplotClient == null) {
+                    gcplotClient = new GcplotClient(apiTimeoutMs, apiRetries);
+                }
+            }
         }
+        return gcplotClient;
+    }
+
+    /**
+     * Remembers that the content of the file was uploaded, so it's not uploaded again if spooled again,
+     * and deletes the file.
+     */
+    private void uploaded(String jvmId, File file) throws IOException {
+        LOG.debug("Uploaded {}", file.getName());
+        uploadIndex.add(jvmId, file.getName());
+        FileUtils.deleteQuietly(file);
     }
 
     public static void main(String[] args) {
@@ -444,6 +1129,15 @@ public class Bootstrap {
 
             Bootstrap bootstrap = new Bootstrap();
             new JCommander(bootstrap, args);
+            if (bootstrap.importDir != null) {
+                boolean completed = false;
+                try {
+                    completed = bootstrap.importLogs();
+                } catch (Throwable t) {
+                    LOG.error(t.getMessage(), t);
+                }
+                System.exit(completed ? 0 : 1);
+            }
             bootstrap.run();
             Thread.sleep(Long.MAX_VALUE);
         } catch (Throwable t) {
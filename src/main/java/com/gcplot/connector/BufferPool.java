@@ -0,0 +1,189 @@
+package com.gcplot.connector;
+
+import java.io.InterruptedIOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/**
+ * Memory budget of the spooling, shared by all JVMs, along with the pools of the buffers
+ * and {@link Deflater}s, which are reused within it.
+ *
+ * Every operation reserves its whole footprint up front with {@link #reserve(long)}, and waits while
+ * the budget is exhausted, so an operation never waits while holding a part of the memory it needs.
+ * Buffers and deflaters are taken from the pools within the reservation and returned after use. Idle
+ * ones are dropped when a new reservation needs their room, so that the reserved and the idle memory
+ * together stay within the budget. Deflaters are counted by their native memory.
+ */
+public class BufferPool {
+    /**
+     * Native memory of a deflater with the default window and memory level: 128K window, 128K hash
+     * and 64K pending buffer.
+     */
+    public static final int DEFLATER_BYTES = 320 * 1024;
+
+    private final long budget;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private long reserved;
+    private long idle;
+    private final ConcurrentMap<Integer, Queue<byte[]>> buffers = new ConcurrentHashMap<Integer, Queue<byte[]>>();
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+    public BufferPool(long budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive, but was " + budget);
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * Waits until the given amount of memory is available. Amounts over the whole budget are
+     * reduced to it, so they are served once nothing else is reserved.
+     *
+     * @return the reserved amount, which should be passed to {@link #release(long)}
+     */
+    public long reserve(long bytes) throws InterruptedIOException {
+        long amount = Math.min(bytes, budget);
+        lock.lock();
+        try {
+            while (reserved + amount > budget) {
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for " + amount + " bytes of memory.");
+                }
+            }
+            while (reserved + idle + amount > budget && evict()) {
+                // the idle memory is given to the new reservation
+            }
+            reserved += amount;
+            return amount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(long amount) {
+        lock.lock();
+        try {
+            reserved -= amount;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a buffer of exactly the given size, to be used within a reservation
+     */
+    public byte[] buffer(int size) {
+        Queue<byte[]> queue = buffers.get(size);
+        byte[] buf = queue == null ? null : queue.poll();
+        if (buf == null) {
+            return new byte[size];
+        }
+        untrack(size);
+        return buf;
+    }
+
+    public void recycle(byte[] buf) {
+        if (buf != null && track(buf.length)) {
+            Queue<byte[]> queue = buffers.get(buf.length);
+            if (queue == null) {
+                buffers.putIfAbsent(buf.length, new ConcurrentLinkedQueue<byte[]>());
+                queue = buffers.get(buf.length);
+            }
+            queue.add(buf);
+        }
+    }
+
+    /**
+     * @return a deflater without the zlib header and trailer, to be used within a reservation
+     */
+    public Deflater deflater(int level) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else {
+            untrack(DEFLATER_BYTES);
+        }
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    public void recycle(Deflater deflater) {
+        deflater.reset();
+        if (track(DEFLATER_BYTES)) {
+            deflaters.add(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getReserved() {
+        lock.lock();
+        try {
+            return reserved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops an idle item, called under the lock.
+     *
+     * @return false if there are no idle items
+     */
+    private boolean evict() {
+        Deflater deflater = deflaters.poll();
+        if (deflater != null) {
+            deflater.end();
+            idle -= DEFLATER_BYTES;
+            return true;
+        }
+        for (Queue<byte[]> queue : buffers.values()) {
+            byte[] buf = queue.poll();
+            if (buf != null) {
+                idle -= buf.length;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the idle item fits into the budget and should be kept
+     */
+    private boolean track(long bytes) {
+        lock.lock();
+        try {
+            if (idle + bytes > budget) {
+                return false;
+            }
+            idle += bytes;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void untrack(long bytes) {
+        lock.lock();
+        try {
+            idle -= bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.gcplot.connector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops the calls to a destination, which keeps failing. After {@code threshold} failures in a row the
+ * circuit opens and the calls are rejected for {@code openMs}, then a single probe call is let through.
+ * If it succeeds, the circuit closes, otherwise it opens again for twice as long, up to {@code maxOpenMs}.
+ */
+public class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+    private final String name;
+    private final int threshold;
+    private final long openMs;
+    private final long maxOpenMs;
+    private int failures;
+    private long currentOpenMs;
+    private long openUntil;
+    private boolean probing;
+
+    public CircuitBreaker(String name, int threshold, long openMs, long maxOpenMs) {
+        this.name = name;
+        this.threshold = threshold;
+        this.openMs = openMs;
+        this.maxOpenMs = maxOpenMs;
+        this.currentOpenMs = openMs;
+    }
+
+    /**
+     * @return whether the call may be made, its outcome should be reported then
+     */
+    public synchronized boolean allow() {
+        if (failures < threshold) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now < openUntil) {
+            return false;
+        }
+        // the next probe is let through only after another window, even if this one is never reported
+        probing = true;
+        openUntil = now + currentOpenMs;
+        return true;
+    }
+
+    public synchronized void success() {
+        if (failures >= threshold) {
+            LOG.info("Circuit Breaker: {} is available again.", name);
+        }
+        failures = 0;
+        probing = false;
+        currentOpenMs = openMs;
+    }
+
+    public synchronized void failure() {
+        failures++;
+        if (probing) {
+            probing = false;
+            currentOpenMs = Math.min(maxOpenMs, currentOpenMs * 2);
+            openUntil = System.currentTimeMillis() + currentOpenMs;
+            LOG.warn("Circuit Breaker: {} is still unavailable, next probe in {} ms.", name, currentOpenMs);
+        } else if (failures == threshold) {
+            openUntil = System.currentTimeMillis() + currentOpenMs;
+            LOG.warn("Circuit Breaker: {} failed {} times in a row, pausing its calls for {} ms.",
+                    name, failures, currentOpenMs);
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return failures >= threshold;
+    }
+
+    /**
+     * @return time left until the next call is let through, 0 if the circuit is closed
+     */
+    public synchronized long getRetryAfterMs() {
+        return failures < threshold ? 0 : Math.max(0, openUntil - System.currentTimeMillis());
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.gcplot.connector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Opens gzip streams with the configured compression level. Large inputs are
+ * compressed by {@link ParallelGzipOutputStream} on the shared executor.
+ *
+ * Streams take their buffers and deflaters from the {@link BufferPool}, within the
+ * reservation of {@link #footprint(long)} made by the caller.
+ */
+public class Compressor {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private final ExecutorService executor;
+    private final BufferPool pool;
+    private final int threads;
+    private final int level;
+    private final int maxInFlight;
+
+    public Compressor(ExecutorService executor, BufferPool pool, int threads, int level) {
+        this.executor = executor;
+        this.pool = pool;
+        this.threads = threads;
+        this.level = level;
+        // a parallel stream shouldn't take more than a half of the budget
+        this.maxInFlight = (int) Math.min(threads * 2, pool.getBudget() / 2 / (2 * BLOCK_SIZE + BufferPool.DEFLATER_BYTES));
+    }
+
+    /**
+     * @param expectedSize the expected number of uncompressed bytes, or -1 if unknown
+     */
+    public OutputStream open(OutputStream out, long expectedSize) throws IOException {
+        if (isParallel(expectedSize)) {
+            return new ParallelGzipOutputStream(out, executor, pool, level, BLOCK_SIZE, maxInFlight);
+        }
+        return new PooledGzipOutputStream(out, pool, level, BUFFER_SIZE);
+    }
+
+    /**
+     * @return memory used by the stream of {@link #open(OutputStream, long)}
+     */
+    public long footprint(long expectedSize) {
+        if (isParallel(expectedSize)) {
+            // the block being filled, plus the blocks and the results in flight
+            return BLOCK_SIZE + maxInFlight * (2L * BLOCK_SIZE + BufferPool.DEFLATER_BYTES);
+        }
+        return BUFFER_SIZE + BufferPool.DEFLATER_BYTES;
+    }
+
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    private boolean isParallel(long expectedSize) {
+        return executor != null && threads > 1 && maxInFlight > 1 && expectedSize >= 2L * BLOCK_SIZE;
+    }
+
+}
@@ -0,0 +1,238 @@
+package com.gcplot.connector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watches any number of directories with a single thread, using the native file change
+ * notifications of the OS (inotify on Linux), and reports changed files to their {@link Listener}s.
+ *
+ * Events are coalesced per file: the first event opens a window of {@code debounceMs},
+ * and the file is reported once when the window closes, no matter how many more events
+ * arrived for it meanwhile. Listeners are called on the executor given with the directory,
+ * so the watching thread never waits for them.
+ */
+public class DirectoryWatcher implements Runnable, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryWatcher.class);
+    private final long debounceMs;
+    private final WatchService watchService;
+    private final ConcurrentMap<WatchKey, Watch> watches = new ConcurrentHashMap<WatchKey, Watch>();
+    private final Map<File, Pending> pending = new LinkedHashMap<File, Pending>();
+
+    public DirectoryWatcher(long debounceMs) throws IOException {
+        this.debounceMs = debounceMs;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Starts watching the directory and requests its initial rescan.
+     */
+    public void register(File dir, Executor executor, Listener listener) throws IOException {
+        WatchKey key = watchKey(dir);
+        Watch watch = new Watch(dir, executor, listener);
+        watches.put(key, watch);
+        watch.rescan();
+    }
+
+    /**
+     * Stops watching the directory. Its changes, which are not reported yet, are dropped.
+     */
+    public void unregister(File dir) {
+        Iterator<Map.Entry<WatchKey, Watch>> i = watches.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<WatchKey, Watch> e = i.next();
+            if (e.getValue().dir.equals(dir)) {
+                e.getValue().active = false;
+                e.getKey().cancel();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * @return whether the directory is registered and still accessible
+     */
+    public boolean isWatched(File dir) {
+        for (Watch watch : watches.values()) {
+            if (watch.dir.equals(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                WatchKey key = pending.isEmpty() ? watchService.take()
+                        : watchService.poll(nextTimeoutMs(), TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    poll(key);
+                }
+                firePending();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ClosedWatchServiceException e) {
+                break;
+            } catch (Throwable t) {
+                // this is the only thread watching all the dirs, so it must survive anything
+                LOG.error(t.getMessage(), t);
+                recover();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * Brings the watches back after a failure, which could leave a key signalled, so it gets no more events,
+     * and lose some events: the keys are reset, or registered again if they are no longer valid, and
+     * the dirs are rescanned.
+     */
+    private void recover() {
+        for (Map.Entry<WatchKey, Watch> e : new ArrayList<Map.Entry<WatchKey, Watch>>(watches.entrySet())) {
+            Watch watch = e.getValue();
+            try {
+                if (!e.getKey().reset()) {
+                    watches.remove(e.getKey());
+                    watches.put(watchKey(watch.dir), watch);
+                }
+                watch.rescan();
+            } catch (Throwable t) {
+                LOG.warn("Directory Watcher: unable to watch {} again: {}", watch.dir, t.getMessage());
+            }
+        }
+    }
+
+    private WatchKey watchKey(File dir) throws IOException {
+        return dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    private void poll(WatchKey key) {
+        // the events, which arrive before the watch is put, are covered by its initial rescan
+        Watch watch = watches.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (watch == null) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                LOG.debug("Directory Watcher: events overflow in {}, rescanning.", watch.dir);
+                watch.rescan();
+            } else {
+                File f = new File(watch.dir, event.context().toString());
+                LOG.trace("Directory Watcher: Received notify about '{}' with kind {}", f, event.kind());
+                if (!pending.containsKey(f)) {
+                    pending.put(f, new Pending(watch, System.currentTimeMillis() + debounceMs));
+                }
+            }
+        }
+        if (!key.reset()) {
+            watches.remove(key);
+            if (watch != null) {
+                LOG.warn("Directory Watcher: {} is no longer accessible.", watch.dir);
+            }
+        }
+    }
+
+    private long nextTimeoutMs() {
+        long first = pending.values().iterator().next().deadline;
+        return Math.max(0, first - System.currentTimeMillis());
+    }
+
+    private void firePending() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<File, Pending>> i = pending.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<File, Pending> e = i.next();
+            if (e.getValue().deadline > now) {
+                // entries are ordered by deadline, as all of them use the same window
+                break;
+            }
+            i.remove();
+            if (e.getValue().watch.active) {
+                e.getValue().watch.change(e.getKey());
+            }
+        }
+    }
+
+    private static class Pending {
+        private final Watch watch;
+        private final long deadline;
+
+        private Pending(Watch watch, long deadline) {
+            this.watch = watch;
+            this.deadline = deadline;
+        }
+    }
+
+    private static class Watch {
+        private final File dir;
+        private final Executor executor;
+        private final Listener listener;
+        private final AtomicBoolean rescanQueued = new AtomicBoolean();
+        private volatile boolean active = true;
+
+        private Watch(File dir, Executor executor, Listener listener) {
+            this.dir = dir;
+            this.executor = executor;
+            this.listener = listener;
+        }
+
+        private void change(final File f) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onChange(f);
+                }
+            });
+        }
+
+        private void rescan() {
+            // a queued rescan will see all the changes anyway
+            if (rescanQueued.compareAndSet(false, true)) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        rescanQueued.set(false);
+                        listener.onRescan();
+                    }
+                });
+            }
+        }
+    }
+
+    public interface Listener {
+
+        /**
+         * Called once per debounce window for every created or modified file.
+         */
+        void onChange(File f);
+
+        /**
+         * Called on start and whenever some events were lost, so that
+         * the whole directory should be checked.
+         */
+        void onRescan();
+
+    }
+
+}
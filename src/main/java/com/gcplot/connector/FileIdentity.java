@@ -0,0 +1,100 @@
+package com.gcplot.connector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Identity of a log file, which survives its renames on rotation: the file key of the file system
+ * (device and inode on Unix), or, where there are no file keys, the {@link #fingerprint} of the file.
+ * The fingerprint is stable only for the rotated files, which are not appended anymore, so the active
+ * file has no identity then.
+ */
+public abstract class FileIdentity {
+    static final int BLOCK_SIZE = 4096;
+
+    /**
+     * @return the identity of {@code f}, or null if it has none
+     */
+    public static String of(File f, boolean active) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        Object fileKey = attrs.fileKey();
+        if (fileKey != null) {
+            return "key:" + fileKey;
+        }
+        return active ? null : "fp:" + fingerprint(f, attrs.size());
+    }
+
+    /**
+     * Cheap fingerprint of the content: the length and the CRC32s of the first and the last
+     * {@link #BLOCK_SIZE} bytes of the file. It's not cryptographic, and it takes microseconds
+     * regardless of the file size, so it's used to tell that a file didn't change without reading
+     * it whole.
+     *
+     * @return hex of the length and both CRC32s
+     */
+    public static String fingerprint(File f, long length) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        CRC32 head = new CRC32();
+        CRC32 tail = new CRC32();
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            int headLength = (int) Math.min(BLOCK_SIZE, length);
+            raf.readFully(block, 0, headLength);
+            head.update(block, 0, headLength);
+            if (length > BLOCK_SIZE) {
+                int tailLength = (int) Math.min(BLOCK_SIZE, length - BLOCK_SIZE);
+                raf.seek(length - tailLength);
+                raf.readFully(block, 0, tailLength);
+                tail.update(block, 0, tailLength);
+            }
+        } finally {
+            raf.close();
+        }
+        return String.format("%x-%08x-%08x", length, head.getValue(), tail.getValue());
+    }
+
+    /**
+     * Fingerprint of the beginning of a stream, which tells whether a file still has, or a rotated
+     * (maybe compressed) file continues, the stream shipped from the active file.
+     *
+     * @return hex of the length and the CRC32 of the first {@code length} bytes of the uncompressed
+     * content, or null if the content is shorter
+     */
+    public static String head(File f, boolean gzipped, int length) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            if (gzipped) {
+                in = new GZIPInputStream(in);
+            }
+            byte[] block = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int r = in.read(block, read, length - read);
+                if (r < 0) {
+                    return null;
+                }
+                read += r;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(block, 0, length);
+            return String.format("%x-%08x", length, crc.getValue());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return number of bytes covered by the {@link #head} fingerprint
+     */
+    public static int headLength(String head) {
+        return Integer.parseInt(head.substring(0, head.indexOf('-')), 16);
+    }
+
+}
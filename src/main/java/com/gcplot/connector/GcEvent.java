@@ -0,0 +1,148 @@
+package com.gcplot.connector;
+
+/**
+ * A single GC event, parsed by {@link GcEventParser}. Instances are reused from line
+ * to line. Sizes are in KB, except G1 region counts, which are kept as is; -1 means unknown.
+ */
+public class GcEvent {
+    public static final int MAX_GENERATIONS = 8;
+    public static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+    public enum Kind {
+        PAUSE, FULL_PAUSE, CONCURRENT
+    }
+
+    Kind kind;
+    long timeMillis;
+    long uptimeMillis;
+    long gcId;
+    String name;
+    String cause;
+    long durationMicros;
+    long heapBefore;
+    long heapAfter;
+    long heapCapacity;
+    int generations;
+    final String[] generationNames = new String[MAX_GENERATIONS];
+    final long[] generationBefore = new long[MAX_GENERATIONS];
+    final long[] generationAfter = new long[MAX_GENERATIONS];
+    final long[] generationCapacity = new long[MAX_GENERATIONS];
+
+    public GcEvent() {
+        reset();
+    }
+
+    public void reset() {
+        kind = null;
+        timeMillis = UNKNOWN_TIME;
+        uptimeMillis = -1;
+        gcId = -1;
+        name = null;
+        cause = null;
+        durationMicros = -1;
+        heapBefore = -1;
+        heapAfter = -1;
+        heapCapacity = -1;
+        generations = 0;
+    }
+
+    void copyFrom(GcEvent e) {
+        kind = e.kind;
+        timeMillis = e.timeMillis;
+        uptimeMillis = e.uptimeMillis;
+        gcId = e.gcId;
+        name = e.name;
+        cause = e.cause;
+        durationMicros = e.durationMicros;
+        heapBefore = e.heapBefore;
+        heapAfter = e.heapAfter;
+        heapCapacity = e.heapCapacity;
+        generations = e.generations;
+        System.arraycopy(e.generationNames, 0, generationNames, 0, generations);
+        System.arraycopy(e.generationBefore, 0, generationBefore, 0, generations);
+        System.arraycopy(e.generationAfter, 0, generationAfter, 0, generations);
+        System.arraycopy(e.generationCapacity, 0, generationCapacity, 0, generations);
+    }
+
+    /**
+     * Adds a generation, unless there are {@link #MAX_GENERATIONS} already.
+     */
+    void addGeneration(String name, long before, long after, long capacity) {
+        if (generations < MAX_GENERATIONS) {
+            generationNames[generations] = name;
+            generationBefore[generations] = before;
+            generationAfter[generations] = after;
+            generationCapacity[generations] = capacity;
+            generations++;
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Wall clock time of the event in epoch millis, or {@link #UNKNOWN_TIME}.
+     */
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public long getUptimeMillis() {
+        return uptimeMillis;
+    }
+
+    /**
+     * Sequence number of the collection in unified logging, {@code GC(<id>)}.
+     */
+    public long getGcId() {
+        return gcId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCause() {
+        return cause;
+    }
+
+    /**
+     * Duration of the pause, or of the whole phase for {@link Kind#CONCURRENT} events.
+     */
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public long getHeapBefore() {
+        return heapBefore;
+    }
+
+    public long getHeapAfter() {
+        return heapAfter;
+    }
+
+    public long getHeapCapacity() {
+        return heapCapacity;
+    }
+
+    public int getGenerations() {
+        return generations;
+    }
+
+    public String getGenerationName(int i) {
+        return generationNames[i];
+    }
+
+    public long getGenerationBefore(int i) {
+        return generationBefore[i];
+    }
+
+    public long getGenerationAfter(int i) {
+        return generationAfter[i];
+    }
+
+    public long getGenerationCapacity(int i) {
+        return generationCapacity[i];
+    }
+}
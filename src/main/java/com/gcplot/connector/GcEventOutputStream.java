@@ -0,0 +1,213 @@
+package com.gcplot.connector;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Consumes the raw GC log bytes and writes the parsed {@link GcEvent}s to the underlying
+ * stream in a compact binary format, instead of the text itself.
+ *
+ * The stream starts with the {@code GCE1} magic int, followed by the records:
+ * <pre>
+ *   flags        byte: kind ordinal | HAS_TIME | HAS_UPTIME | HAS_CAUSE | HAS_HEAP, always less than 0x40
+ *   uptime       zigzag varlong, delta from the previous event uptime, if HAS_UPTIME
+ *   time         zigzag varlong, delta from the previous event time minus the uptime delta, if HAS_TIME
+ *   name         string ref
+ *   cause        string ref, if HAS_CAUSE
+ *   gcId         varlong, id + 1 or 0
+ *   duration     varlong, micros + 1 or 0
+ *   heap         3 zigzag varlongs, before, after and capacity in KB, if HAS_HEAP
+ *   generations  varint count, then a string ref and 3 zigzag varlongs per each
+ * </pre>
+ * Sizes are written as deltas from the previous heap and the previous generation at the same
+ * position, as they change slowly, and the uptime delta is deducted from the time delta, so
+ * both are almost free when the log has both.
+ * A string ref is varint 0 followed by a UTF string, which gets the next id, or id + 1 of
+ * a previously written string. Only the first {@link #MAX_STRINGS} strings get ids. Files can
+ * be concatenated, as every file starts from its own magic, which is never a valid flags byte.
+ *
+ * Lines are parsed as they come, so memory is bounded by {@link #MAX_LINE} and the string table.
+ */
+public class GcEventOutputStream extends OutputStream {
+    public static final int MAGIC = 0x47434531; // GCE1
+    static final int MAX_LINE = 16 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    static final int MAX_STRINGS = 1024;
+    /**
+     * Approximate memory of an entry of the string table: the map entry, the id and a short string,
+     * as names of the events, causes and generations are.
+     */
+    private static final int STRING_FOOTPRINT = 128;
+    /**
+     * Approximate memory of the stream, including the full string table.
+     */
+    static final int FOOTPRINT = MAX_LINE + BUFFER_SIZE + 4 * 1024 + MAX_STRINGS * STRING_FOOTPRINT;
+    static final int HAS_TIME = 0x04;
+    static final int HAS_UPTIME = 0x08;
+    static final int HAS_CAUSE = 0x10;
+    static final int HAS_HEAP = 0x20;
+
+    private final DataOutputStream out;
+    private final GcEventParser parser;
+    private final GcEvent event = new GcEvent();
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+    private final byte[] line = new byte[MAX_LINE];
+    private int lineLength;
+    private boolean lineTruncated;
+    private long lastTime;
+    private long lastUptime;
+    private final long[] lastHeap = new long[3];
+    private final long[] lastGeneration = new long[GcEvent.MAX_GENERATIONS * 3];
+    private long events;
+
+    public GcEventOutputStream(OutputStream out) throws IOException {
+        this(out, null);
+    }
+
+    /**
+     * @param previous parser of the preceding part of the log, which this stream continues, or null
+     */
+    public GcEventOutputStream(OutputStream out, GcEventParser previous) throws IOException {
+        this.parser = previous != null ? new GcEventParser(previous) : new GcEventParser();
+        this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        this.out.writeInt(MAGIC);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                append(b, start, i);
+                onLine();
+                start = i + 1;
+            }
+        }
+        append(b, start, end);
+    }
+
+    /**
+     * @return parser of the stream, to be continued by the stream of the next part of the log
+     */
+    public GcEventParser getParser() {
+        return parser;
+    }
+
+    /**
+     * @return number of events written so far
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (lineLength > 0) {
+                onLine();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void append(byte[] b, int from, int to) {
+        int len = Math.min(to - from, MAX_LINE - lineLength);
+        System.arraycopy(b, from, line, lineLength, len);
+        lineLength += len;
+        lineTruncated |= len < to - from;
+    }
+
+    private void onLine() throws IOException {
+        // too long lines are not GC events, e.g. a dump of the flags
+        if (!lineTruncated && parser.parse(line, 0, lineLength, event)) {
+            writeEvent(event);
+        }
+        lineLength = 0;
+        lineTruncated = false;
+    }
+
+    private void writeEvent(GcEvent e) throws IOException {
+        boolean hasTime = e.timeMillis != GcEvent.UNKNOWN_TIME;
+        boolean hasUptime = e.uptimeMillis >= 0;
+        boolean hasHeap = e.heapBefore >= 0;
+        out.writeByte(e.kind.ordinal() | (hasTime ? HAS_TIME : 0) | (hasUptime ? HAS_UPTIME : 0)
+                | (e.cause != null ? HAS_CAUSE : 0) | (hasHeap ? HAS_HEAP : 0));
+        long uptimeDelta = 0;
+        if (hasUptime) {
+            uptimeDelta = e.uptimeMillis - lastUptime;
+            writeZigZag(uptimeDelta);
+            lastUptime = e.uptimeMillis;
+        }
+        if (hasTime) {
+            writeZigZag(e.timeMillis - lastTime - uptimeDelta);
+            lastTime = e.timeMillis;
+        }
+        writeString(e.name);
+        if (e.cause != null) {
+            writeString(e.cause);
+        }
+        writeVarLong(e.gcId + 1);
+        writeVarLong(e.durationMicros + 1);
+        if (hasHeap) {
+            writeDelta(lastHeap, 0, e.heapBefore);
+            writeDelta(lastHeap, 1, e.heapAfter);
+            writeDelta(lastHeap, 2, e.heapCapacity);
+        }
+        writeVarLong(e.generations);
+        for (int i = 0; i < e.generations; i++) {
+            writeString(e.generationNames[i]);
+            writeDelta(lastGeneration, i * 3, e.generationBefore[i]);
+            writeDelta(lastGeneration, i * 3 + 1, e.generationAfter[i]);
+            writeDelta(lastGeneration, i * 3 + 2, e.generationCapacity[i]);
+        }
+        events++;
+        Metrics.GC_EVENTS.inc();
+    }
+
+    private void writeString(String s) throws IOException {
+        Integer id = strings.get(s);
+        if (id != null) {
+            writeVarLong(id + 1);
+        } else {
+            writeVarLong(0);
+            out.writeUTF(s);
+            if (strings.size() < MAX_STRINGS) {
+                strings.put(s, strings.size());
+            }
+        }
+    }
+
+    private void writeDelta(long[] last, int i, long value) throws IOException {
+        writeZigZag(value - last[i]);
+        last[i] = value;
+    }
+
+    private void writeZigZag(long value) throws IOException {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+}
@@ -0,0 +1,484 @@
+package com.gcplot.connector;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses GC log lines into {@link GcEvent}s, working on raw bytes one line at a time.
+ *
+ * Legacy (JDK 8 and earlier) events are single lines, like
+ * {@code 2017-03-28T10:00:00.123+0000: 0.123: [GC (Allocation Failure) [PSYoungGen: 65024K->10736K(75776K)] 65024K->10744K(249344K), 0.0137 secs]},
+ * where the bracketed {@code [Name: before->after(capacity)]} parts are the generations.
+ *
+ * Unified logging (JDK 9+) events are the {@code [gc]} lines, like
+ * {@code [0.100s][info][gc] GC(0) Pause Young (Normal) (G1 Evacuation Pause) 24M->3M(256M) 4.123ms},
+ * while their generations are logged before them as {@code [gc,heap] GC(0) Eden regions: 1->0(2)}
+ * and are kept in a single pending event until the summary line of the same collection comes.
+ *
+ * All other lines, including the detailed multi-line G1 output of JDK 8, are skipped.
+ * The memory used doesn't depend on the log size.
+ *
+ * A log shipped in segments is parsed by a chain of parsers, each {@link #GcEventParser(GcEventParser) continuing}
+ * the previous one, so a collection split between the segments isn't lost.
+ */
+public class GcEventParser {
+    private static final int DATE_LENGTH = "2017-03-28T10:00:00.123+0000".length();
+    private static final String[] LEVELS = { "trace", "debug", "info", "warning", "error" };
+    private final GcEvent pending = new GcEvent();
+    // end of the last parsed value and the last parsed size triple
+    private int pos;
+    private long before;
+    private long after;
+    private long capacity;
+
+    public GcEventParser() {
+    }
+
+    /**
+     * Continues the log parsed by {@code previous}, with its pending collection, if any.
+     * The previous parser is left intact.
+     */
+    public GcEventParser(GcEventParser previous) {
+        pending.copyFrom(previous.pending);
+    }
+
+    /**
+     * @return whether the line in {@code [from, to)} is a GC event, which is then stored to {@code e}
+     */
+    public boolean parse(byte[] b, int from, int to, GcEvent e) {
+        e.reset();
+        int i = skipSpaces(b, from, to);
+        if (i < to && b[i] == '[') {
+            return parseUnified(b, i, to, e);
+        }
+        if (isDate(b, i, to)) {
+            e.timeMillis = parseDate(b, i);
+            i += DATE_LENGTH;
+            if (i >= to || b[i] != ':') {
+                return false;
+            }
+            i = skipSpaces(b, i + 1, to);
+        }
+        if (i < to && isDigit(b[i])) {
+            long uptime = decimal(b, i, to, 3);
+            if (pos >= to || b[pos] != ':') {
+                return false;
+            }
+            e.uptimeMillis = uptime;
+            i = skipSpaces(b, pos + 1, to);
+        }
+        if ((e.timeMillis == GcEvent.UNKNOWN_TIME && e.uptimeMillis < 0) || i >= to || b[i] != '[') {
+            return false;
+        }
+        return parseLegacy(b, i, to, e);
+    }
+
+    private boolean parseLegacy(byte[] b, int i, int to, GcEvent e) {
+        int j = i + 1;
+        while (j < to && b[j] != '(' && b[j] != ':' && b[j] != '[' && b[j] != ']' && b[j] != ',') {
+            j++;
+        }
+        int nameEnd = trimEnd(b, i + 1, j);
+        if (nameEnd == i + 1) {
+            return false;
+        }
+        e.name = string(b, i + 1, nameEnd);
+        if (j < to && b[j] == '(') {
+            int close = matching(b, j, to);
+            if (close < 0) {
+                return false;
+            }
+            e.cause = string(b, j + 1, close);
+            j = close + 1;
+        }
+        if (e.name.startsWith("Full GC")) {
+            e.kind = GcEvent.Kind.FULL_PAUSE;
+        } else if (e.name.toLowerCase().contains("concurrent")) {
+            e.kind = GcEvent.Kind.CONCURRENT;
+        } else {
+            e.kind = GcEvent.Kind.PAUSE;
+        }
+        int depth = 1;
+        String generation = null;
+        int k = j;
+        while (k < to && depth > 0) {
+            byte c = b[k];
+            if (c == '[') {
+                if (depth == 1) {
+                    if (startsWith(b, k + 1, to, "Times:")) {
+                        break;
+                    }
+                    int colon = k + 1;
+                    while (colon < to && b[colon] != ':' && b[colon] != '[' && b[colon] != ']') {
+                        colon++;
+                    }
+                    generation = colon < to && b[colon] == ':' ? string(b, k + 1, colon) : null;
+                }
+                depth++;
+                k++;
+            } else if (c == ']') {
+                depth--;
+                generation = null;
+                k++;
+            } else if (isDigit(c) && !isDigit(b[k - 1]) && b[k - 1] != '.') {
+                if (parseTriple(b, k, to)) {
+                    if (depth == 1 && e.heapBefore < 0) {
+                        setHeap(e);
+                    } else if (depth == 2 && generation != null) {
+                        e.addGeneration(generation, before, after, capacity);
+                        generation = null;
+                    }
+                    k = pos;
+                } else {
+                    long micros = decimal(b, k, to, 6);
+                    if (depth == 1 && startsWith(b, pos, to, " secs")) {
+                        // the last one wins, which is the wall time of "cpu/wall secs" of the concurrent phases
+                        e.durationMicros = micros;
+                    }
+                    k = Math.max(pos, k + 1);
+                }
+            } else {
+                k++;
+            }
+        }
+        return true;
+    }
+
+    private boolean parseUnified(byte[] b, int i, int to, GcEvent e) {
+        String tags = null;
+        while (i < to && b[i] == '[') {
+            int close = indexOf(b, i + 1, to, (byte) ']');
+            if (close < 0) {
+                return false;
+            }
+            int start = i + 1;
+            int end = trimEnd(b, start, close);
+            if (indexOf(b, start, end, (byte) ' ') >= 0) {
+                // legacy event without timestamps
+                return false;
+            }
+            if (isDate(b, start, end)) {
+                if (end - start >= DATE_LENGTH) {
+                    e.timeMillis = parseDate(b, start);
+                }
+            } else if (start < end && isDigit(b[start])) {
+                int digits = 0;
+                while (isDigit(b[start + digits])) {
+                    digits++;
+                }
+                // only the seconds have a fraction, and the 19 digits of time nanos leave no room for a scale
+                long value = decimal(b, start, end, 0);
+                if (pos == end - 1 && b[pos] == 's') {
+                    e.uptimeMillis = decimal(b, start, end, 3);
+                } else if (pos == end - 2 && b[pos] == 'm' && b[pos + 1] == 's') {
+                    if (digits >= 12) {
+                        e.timeMillis = value;
+                    } else {
+                        e.uptimeMillis = value;
+                    }
+                } else if (pos == end - 2 && b[pos] == 'n' && b[pos + 1] == 's') {
+                    if (digits >= 18) {
+                        e.timeMillis = value / 1000000L;
+                    } else {
+                        e.uptimeMillis = value / 1000000L;
+                    }
+                }
+            } else if (!isLevel(b, start, end)) {
+                tags = string(b, start, end);
+            }
+            i = close + 1;
+        }
+        if (tags == null || !(tags.equals("gc") || tags.startsWith("gc,"))) {
+            return false;
+        }
+        i = skipSpaces(b, i, to);
+        if (!startsWith(b, i, to, "GC(")) {
+            return false;
+        }
+        long id = decimal(b, i + 3, to, 0);
+        if (id < 0 || pos >= to || b[pos] != ')') {
+            return false;
+        }
+        i = skipSpaces(b, pos + 1, to);
+        if (tags.equals("gc,heap") || tags.equals("gc,metaspace")) {
+            int colon = indexOf(b, i, to, (byte) ':');
+            if (colon > i && parseTriple(b, skipSpaces(b, colon + 1, to), to)) {
+                if (pending.gcId != id) {
+                    pending.reset();
+                    pending.gcId = id;
+                }
+                pending.addGeneration(string(b, i, colon), before, after, capacity);
+            }
+            return false;
+        }
+        if (!tags.equals("gc")) {
+            return false;
+        }
+        if (startsWith(b, i, to, "Pause Full")) {
+            e.kind = GcEvent.Kind.FULL_PAUSE;
+        } else if (startsWith(b, i, to, "Pause")) {
+            e.kind = GcEvent.Kind.PAUSE;
+        } else if (startsWith(b, i, to, "Concurrent")) {
+            e.kind = GcEvent.Kind.CONCURRENT;
+        } else {
+            return false;
+        }
+        e.gcId = id;
+        // the name is followed by the parenthesized details, the last of which is the cause
+        int j = i;
+        int group = -1;
+        int groupEnd = -1;
+        while (j < to && !isDigit(b[j])) {
+            if (b[j] == '(') {
+                int close = matching(b, j, to);
+                if (close < 0) {
+                    break;
+                }
+                group = j;
+                groupEnd = close;
+                j = close + 1;
+            } else {
+                j++;
+            }
+        }
+        if (group >= 0) {
+            e.name = string(b, i, trimEnd(b, i, group));
+            e.cause = string(b, group + 1, groupEnd);
+        } else {
+            e.name = string(b, i, trimEnd(b, i, j));
+        }
+        int k = j;
+        while (k < to) {
+            if (isDigit(b[k]) && !isDigit(b[k - 1]) && b[k - 1] != '.') {
+                if (parseTriple(b, k, to)) {
+                    if (e.heapBefore < 0) {
+                        setHeap(e);
+                    }
+                    k = pos;
+                } else {
+                    long value = decimal(b, k, to, 6);
+                    if (startsWith(b, pos, to, "ms")) {
+                        e.durationMicros = value / 1000;
+                    } else if (startsWith(b, pos, to, "s")) {
+                        e.durationMicros = value;
+                    }
+                    k = Math.max(pos, k + 1);
+                }
+            } else {
+                k++;
+            }
+        }
+        if (pending.gcId == id) {
+            for (int g = 0; g < pending.generations; g++) {
+                e.addGeneration(pending.generationNames[g], pending.generationBefore[g],
+                        pending.generationAfter[g], pending.generationCapacity[g]);
+            }
+            pending.reset();
+        }
+        return true;
+    }
+
+    private void setHeap(GcEvent e) {
+        e.heapBefore = before;
+        e.heapAfter = after;
+        e.heapCapacity = capacity;
+    }
+
+    /**
+     * Parses {@code before->after(capacity)}, like {@code 65024K->10744K(249344K)} or {@code 1->0(2)}.
+     */
+    private boolean parseTriple(byte[] b, int i, int to) {
+        long before = size(b, i, to);
+        if (before < 0 || !startsWith(b, pos, to, "->")) {
+            return false;
+        }
+        long after = size(b, pos + 2, to);
+        if (after < 0 || pos >= to || b[pos] != '(') {
+            return false;
+        }
+        long capacity = size(b, pos + 1, to);
+        if (capacity < 0 || pos >= to || b[pos] != ')') {
+            return false;
+        }
+        pos++;
+        this.before = before;
+        this.after = after;
+        this.capacity = capacity;
+        return true;
+    }
+
+    /**
+     * @return size in KB, like {@code 24.0M}, or the number itself if there is no unit
+     */
+    private long size(byte[] b, int i, int to) {
+        long value = decimal(b, i, to, 3);
+        if (value < 0) {
+            return -1;
+        }
+        if (pos < to) {
+            switch (b[pos]) {
+                case 'B':
+                    pos++;
+                    return value / 1024 / 1000;
+                case 'K':
+                    pos++;
+                    return value / 1000;
+                case 'M':
+                    pos++;
+                    return value * 1024 / 1000;
+                case 'G':
+                    pos++;
+                    return value * 1024 * 1024 / 1000;
+                default:
+            }
+        }
+        return value / 1000;
+    }
+
+    /**
+     * @return the decimal number at {@code i}, multiplied by {@code 10^scale}, or -1 if there is none
+     */
+    private long decimal(byte[] b, int i, int to, int scale) {
+        int p = i;
+        long value = 0;
+        while (p < to && isDigit(b[p])) {
+            value = value * 10 + (b[p] - '0');
+            p++;
+        }
+        if (p == i) {
+            pos = i;
+            return -1;
+        }
+        int digits = 0;
+        if (p + 1 < to && b[p] == '.' && isDigit(b[p + 1])) {
+            p++;
+            while (p < to && isDigit(b[p])) {
+                if (digits < scale) {
+                    value = value * 10 + (b[p] - '0');
+                    digits++;
+                }
+                p++;
+            }
+        }
+        for (; digits < scale; digits++) {
+            value *= 10;
+        }
+        pos = p;
+        return value;
+    }
+
+    /**
+     * Parses {@code yyyy-MM-ddTHH:mm:ss.SSS+ZZZZ} into epoch millis.
+     */
+    private static long parseDate(byte[] b, int i) {
+        int year = number(b, i, 4);
+        int month = number(b, i + 5, 2);
+        int day = number(b, i + 8, 2);
+        int hour = number(b, i + 11, 2);
+        int minute = number(b, i + 14, 2);
+        int second = number(b, i + 17, 2);
+        int millis = number(b, i + 20, 3);
+        int zoneHours = number(b, i + 24, 2);
+        int zoneMinutes = number(b, i + 26, 2);
+        if (year < 0 || month < 1 || day < 1 || hour < 0 || minute < 0 || second < 0 || millis < 0
+                || zoneHours < 0 || zoneMinutes < 0 || (b[i + 23] != '+' && b[i + 23] != '-')) {
+            return GcEvent.UNKNOWN_TIME;
+        }
+        long zone = (zoneHours * 60L + zoneMinutes) * 60000L * (b[i + 23] == '-' ? -1 : 1);
+        return (((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millis - zone;
+    }
+
+    /**
+     * Days since 1970-01-01 of the proleptic Gregorian date.
+     */
+    private static long daysFromCivil(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int number(byte[] b, int i, int digits) {
+        int value = 0;
+        for (int j = i; j < i + digits; j++) {
+            if (!isDigit(b[j])) {
+                return -1;
+            }
+            value = value * 10 + (b[j] - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDate(byte[] b, int i, int to) {
+        return to - i >= DATE_LENGTH && number(b, i, 4) >= 0 && b[i + 4] == '-' && b[i + 7] == '-' && b[i + 10] == 'T';
+    }
+
+    private static boolean isLevel(byte[] b, int from, int to) {
+        for (String level : LEVELS) {
+            if (startsWith(b, from, to, level) && to - from == level.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean startsWith(byte[] b, int i, int to, String prefix) {
+        if (to - i < prefix.length()) {
+            return false;
+        }
+        for (int j = 0; j < prefix.length(); j++) {
+            if (b[i + j] != prefix.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return position of the parenthesis closing the one at {@code i}, or -1
+     */
+    private static int matching(byte[] b, int i, int to) {
+        int depth = 0;
+        for (int j = i; j < to; j++) {
+            if (b[j] == '(') {
+                depth++;
+            } else if (b[j] == ')' && --depth == 0) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] b, int from, int to, byte c) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpaces(byte[] b, int i, int to) {
+        while (i < to && (b[i] == ' ' || b[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int trimEnd(byte[] b, int from, int to) {
+        while (to > from && (b[to - 1] == ' ' || b[to - 1] == '\t' || b[to - 1] == '\r')) {
+            to--;
+        }
+        return to;
+    }
+
+    private static String string(byte[] b, int from, int to) {
+        return new String(b, from, to - from, StandardCharsets.UTF_8);
+    }
+
+}
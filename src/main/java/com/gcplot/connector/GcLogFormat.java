@@ -0,0 +1,51 @@
+package com.gcplot.connector;
+
+/**
+ * Format of a GC log file, as detected by {@link GcLogSniffer}.
+ */
+public enum GcLogFormat {
+
+    /**
+     * None of the lines has a recognizable timestamp, e.g. the log is empty or written with
+     * {@code -XX:+PrintGC} only. Uploaded anyway, as it was always done.
+     */
+    UNKNOWN(null),
+    /**
+     * JDK 8 and earlier, with {@code -XX:+PrintGCDateStamps}.
+     */
+    LEGACY_DATED(null),
+    /**
+     * JDK 8 and earlier, with {@code -XX:+PrintGCTimeStamps} only.
+     */
+    LEGACY_UPTIME("-XX:+PrintGCDateStamps flag"),
+    /**
+     * JDK 9+ unified logging, decorated with wall clock time ({@code time}, {@code utctime},
+     * {@code timemillis} or {@code timenanos}).
+     */
+    UNIFIED_DATED(null),
+    /**
+     * JDK 9+ unified logging, decorated with uptime and/or level and tags only.
+     */
+    UNIFIED_UNDATED("time decoration, e.g. -Xlog:gc*:file=gc.log:time,uptime,level,tags");
+
+    private final String fix;
+
+    GcLogFormat(String fix) {
+        this.fix = fix;
+    }
+
+    /**
+     * Whether the logs of this format can be processed by GCPlot. The others are still uploaded,
+     * unless {@code -skip_undated_logs} is set.
+     */
+    public boolean isSupported() {
+        return fix == null;
+    }
+
+    /**
+     * JVM option, which makes the unsupported logs processable.
+     */
+    public String getFix() {
+        return fix;
+    }
+}
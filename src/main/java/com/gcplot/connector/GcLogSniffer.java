@@ -0,0 +1,199 @@
+package com.gcplot.connector;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Detects the {@link GcLogFormat} of a log by its first lines. Works on raw bytes, so there
+ * is no charset decoding or regex matching involved.
+ *
+ * Legacy lines start with {@code 2017-03-28T10:00:00.123+0000: 0.123: [GC ...} or just
+ * {@code 0.123: [GC ...}, while unified logging lines start with bracketed decorations, like
+ * {@code [2017-03-28T10:00:00.123+0000][0.123s][info ][gc] ...}.
+ */
+public abstract class GcLogSniffer {
+    static final int LINE_LIMIT = 100;
+    static final int BYTE_LIMIT = 64 * 1024;
+    private static final int MAX_DECORATIONS = 8;
+    private static final String[] LEVELS = { "trace", "debug", "info", "warning", "error" };
+
+    /**
+     * @param complete whether the file isn't written anymore, i.e. its end is the end of the log
+     * @return the detected format, or null if there are not enough lines to tell yet
+     */
+    public static GcLogFormat sniff(File f, boolean gzipped, boolean complete) throws IOException {
+        InputStream is = new FileInputStream(f);
+        try {
+            if (gzipped) {
+                is = new GZIPInputStream(is);
+            }
+            byte[] head = new byte[BYTE_LIMIT];
+            int len = IOUtils.read(is, head);
+            return sniff(head, len, complete && len < head.length);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @param whole whether the buffer contains the whole log
+     */
+    static GcLogFormat sniff(byte[] buf, int len, boolean whole) {
+        GcLogFormat undated = null;
+        int lines = 0;
+        int pos = 0;
+        while (pos < len && lines < LINE_LIMIT) {
+            int end = pos;
+            while (end < len && buf[end] != '\n') {
+                end++;
+            }
+            if (end == len && !whole) {
+                // the line can be incomplete yet
+                break;
+            }
+            lines++;
+            GcLogFormat format = classify(buf, pos, end);
+            if (format == GcLogFormat.LEGACY_DATED || format == GcLogFormat.UNIFIED_DATED) {
+                return format;
+            } else if (format != null && undated == null) {
+                undated = format;
+            }
+            pos = end + 1;
+        }
+        if (undated != null) {
+            return undated;
+        }
+        return whole || lines >= LINE_LIMIT || len >= BYTE_LIMIT ? GcLogFormat.UNKNOWN : null;
+    }
+
+    /**
+     * @return format of a single line, or null if the line doesn't tell anything
+     */
+    private static GcLogFormat classify(byte[] buf, int from, int to) {
+        int i = from;
+        while (i < to && (buf[i] == ' ' || buf[i] == '\t')) {
+            i++;
+        }
+        if (i < to && buf[i] == '[') {
+            return classifyDecorations(buf, i, to);
+        } else if (isDate(buf, i, to)) {
+            return GcLogFormat.LEGACY_DATED;
+        }
+        int digits = digits(buf, i, to);
+        if (digits > 0 && i + digits < to && buf[i + digits] == '.') {
+            int fraction = digits(buf, i + digits + 1, to);
+            int colon = i + digits + 1 + fraction;
+            if (fraction > 0 && colon < to && buf[colon] == ':') {
+                return GcLogFormat.LEGACY_UPTIME;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Unified logging decorations are bracketed values without inner spaces, which
+     * distinguishes them from the legacy {@code [GC (Allocation Failure) ...} lines.
+     */
+    private static GcLogFormat classifyDecorations(byte[] buf, int i, int to) {
+        boolean decorated = false;
+        for (int n = 0; n < MAX_DECORATIONS && i < to && buf[i] == '['; n++) {
+            int close = i + 1;
+            while (close < to && buf[close] != ']') {
+                close++;
+            }
+            if (close == to) {
+                break;
+            }
+            int start = i + 1;
+            int end = close;
+            while (end > start && buf[end - 1] == ' ') {
+                end--;
+            }
+            if (indexOf(buf, start, end, (byte) ' ') >= 0) {
+                break;
+            }
+            if (isDate(buf, start, end)) {
+                return GcLogFormat.UNIFIED_DATED;
+            }
+            int digits = digits(buf, start, end);
+            if (digits > 0) {
+                boolean millis = isUnit(buf, start + digits, end, 'm');
+                boolean nanos = isUnit(buf, start + digits, end, 'n');
+                // timemillis and timenanos are epoch based, while uptimemillis and uptimenanos are way smaller
+                if ((millis && digits >= 12) || (nanos && digits >= 18)) {
+                    return GcLogFormat.UNIFIED_DATED;
+                }
+                decorated |= millis || nanos || isSeconds(buf, start + digits, end);
+            } else {
+                decorated |= isLevel(buf, start, end);
+            }
+            i = close + 1;
+        }
+        return decorated ? GcLogFormat.UNIFIED_UNDATED : null;
+    }
+
+    /**
+     * Matches the {@code 0.123s} uptime decoration, after its integer part.
+     */
+    private static boolean isSeconds(byte[] buf, int i, int to) {
+        if (i < to && buf[i] == '.') {
+            int fraction = digits(buf, i + 1, to);
+            return fraction > 0 && i + 1 + fraction == to - 1 && buf[to - 1] == 's';
+        }
+        return false;
+    }
+
+    /**
+     * Matches the {@code ms} and {@code ns} suffixes.
+     */
+    private static boolean isUnit(byte[] buf, int i, int to, char prefix) {
+        return to - i == 2 && buf[i] == prefix && buf[i + 1] == 's';
+    }
+
+    private static boolean isLevel(byte[] buf, int from, int to) {
+        for (String level : LEVELS) {
+            if (level.length() == to - from) {
+                int j = 0;
+                while (j < level.length() && buf[from + j] == level.charAt(j)) {
+                    j++;
+                }
+                if (j == level.length()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Matches {@code yyyy-MM-ddT}.
+     */
+    private static boolean isDate(byte[] buf, int i, int to) {
+        return to - i >= 11 && digits(buf, i, i + 4) == 4 && buf[i + 4] == '-'
+                && digits(buf, i + 5, i + 7) == 2 && buf[i + 7] == '-'
+                && digits(buf, i + 8, i + 10) == 2 && buf[i + 10] == 'T';
+    }
+
+    private static int digits(byte[] buf, int from, int to) {
+        int i = from;
+        while (i < to && buf[i] >= '0' && buf[i] <= '9') {
+            i++;
+        }
+        return i - from;
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
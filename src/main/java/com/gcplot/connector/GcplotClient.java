@@ -0,0 +1,180 @@
+package com.gcplot.connector;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.Header;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client of the GCPlot API over a small pool of keep-alive connections.
+ *
+ * Failed calls (I/O errors, 429 and 5xx responses) are retried a bounded number of times, with
+ * exponential backoff and full jitter, so many connectors don't retry in lockstep after an outage.
+ * Responses are always fully consumed and closed, so their connections go back to the pool.
+ *
+ * {@link #callCached(URI)} remembers the ETag and Last-Modified of the previous response and makes
+ * a conditional request, so an unchanged resource costs a bodiless 304.
+ */
+public class GcplotClient implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(GcplotClient.class);
+    private static final ObjectMapper JSON_FACTORY = new ObjectMapper();
+    private static final long BASE_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30000;
+    private static final int SC_NOT_MODIFIED = 304;
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private final PoolingHttpClientConnectionManager connections;
+    private final CloseableHttpClient httpclient;
+    private final int retries;
+    private final ConcurrentMap<String, Cached> cache = new ConcurrentHashMap<String, Cached>();
+
+    public GcplotClient(int timeoutMs, int retries) {
+        this.connections = new PoolingHttpClientConnectionManager(5, TimeUnit.MINUTES);
+        connections.setMaxTotal(4);
+        connections.setDefaultMaxPerRoute(4);
+        connections.setValidateAfterInactivity(10000);
+        this.httpclient = HttpClients.custom()
+                .setConnectionManager(connections)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeoutMs)
+                        .setSocketTimeout(timeoutMs)
+                        .setConnectionRequestTimeout(timeoutMs)
+                        .build())
+                .disableAutomaticRetries()
+                .build();
+        this.retries = Math.max(0, retries);
+    }
+
+    /**
+     * @return the {@code result} of the response
+     */
+    public JsonNode call(URI uri) throws Exception {
+        return execute(uri, false);
+    }
+
+    /**
+     * Same as {@link #call(URI)}, but returns the previous result if the server says it's not modified.
+     */
+    public JsonNode callCached(URI uri) throws Exception {
+        return execute(uri, true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            httpclient.close();
+        } finally {
+            connections.shutdown();
+        }
+    }
+
+    private JsonNode execute(URI uri, boolean conditional) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return executeOnce(uri, conditional);
+            } catch (RetryableException e) {
+                if (attempt >= retries) {
+                    throw e;
+                }
+                long backoff = ThreadLocalRandom.current().nextLong(
+                        Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 16)) + 1);
+                LOG.debug("GCPlot API: {} failed ({}), retrying in {} ms.", uri.getPath(), e.getMessage(), backoff);
+                Thread.sleep(backoff);
+            }
+        }
+    }
+
+    private JsonNode executeOnce(URI uri, boolean conditional) throws Exception {
+        HttpGet get = new HttpGet(uri);
+        String key = uri.toString();
+        Cached cached = conditional ? cache.get(key) : null;
+        if (cached != null) {
+            if (cached.etag != null) {
+                get.setHeader("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                get.setHeader("If-Modified-Since", cached.lastModified);
+            }
+        }
+        LOG.debug("Calling {}", uri.getPath());
+        CloseableHttpResponse resp;
+        try {
+            resp = httpclient.execute(get);
+        } catch (IOException e) {
+            throw new RetryableException(e.getMessage(), e);
+        }
+        try {
+            int status = resp.getStatusLine().getStatusCode();
+            if (status == SC_NOT_MODIFIED && cached != null) {
+                LOG.debug("GCPlot API: {} not modified.", uri.getPath());
+                return cached.result;
+            }
+            if (status == SC_TOO_MANY_REQUESTS || status >= 500) {
+                throw new RetryableException("HTTP " + status, null);
+            }
+            if (status >= 300) {
+                throw new IOException("GCPlot API: " + uri.getPath() + " returned HTTP " + status);
+            }
+            JsonNode result;
+            try {
+                result = JSON_FACTORY.readTree(resp.getEntity().getContent()).get("result");
+            } catch (IOException e) {
+                throw new RetryableException(e.getMessage(), e);
+            }
+            if (conditional) {
+                String etag = header(resp.getFirstHeader("ETag"));
+                String lastModified = header(resp.getFirstHeader("Last-Modified"));
+                if (result != null && (etag != null || lastModified != null)) {
+                    cache.put(key, new Cached(etag, lastModified, result));
+                } else {
+                    cache.remove(key);
+                }
+            }
+            return result;
+        } finally {
+            EntityUtils.consumeQuietly(resp.getEntity());
+            resp.close();
+        }
+    }
+
+    private static String header(Header header) {
+        return header == null ? null : header.getValue();
+    }
+
+    private static class Cached {
+        private final String etag;
+        private final String lastModified;
+        private final JsonNode result;
+
+        private Cached(String etag, String lastModified, JsonNode result) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.result = result;
+        }
+    }
+
+    private static class RetryableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private RetryableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.gcplot.connector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One-shot import of archived GC logs from a directory tree.
+ *
+ * The tree is walked on a {@link ForkJoinPool}, where every directory and every file is a task, so
+ * files are fingerprinted and compressed in parallel. Spooled files are handed to the {@link UploadScheduler}
+ * as backfill, whose bounded queue also bounds the number of concurrent uploads.
+ *
+ * Every imported file is checkpointed to a {@link RecordLog} with its length and modification time, so
+ * an interrupted import skips the files it already did. Files spooled but not uploaded yet are resumed
+ * by the scheduler itself.
+ */
+public class Importer implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(Importer.class);
+    private static final int MAGIC = 0x47435049; // GCPI
+    private static final int VERSION = 1;
+
+    private final LogSpooler spooler;
+    private final UploadScheduler scheduler;
+    private final RecordLog checkpoint;
+    private final int parallelism;
+    private final boolean skipUndated;
+    private final ConcurrentMap<String, String> done = new ConcurrentHashMap<String, String>();
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param skipUndated whether to skip the logs without wall clock timestamps, instead of uploading them
+     */
+    public Importer(LogSpooler spooler, UploadScheduler scheduler, File checkpointFile, int parallelism,
+                    boolean skipUndated) throws IOException {
+        this.spooler = spooler;
+        this.scheduler = scheduler;
+        this.checkpoint = new RecordLog(checkpointFile, MAGIC, VERSION);
+        this.parallelism = Math.max(1, parallelism);
+        this.skipUndated = skipUndated;
+        checkpoint.replay(new RecordLog.Handler() {
+            @Override
+            public void onRecord(byte[] payload) throws IOException {
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload));
+                String key = dis.readUTF();
+                done.put(key, dis.readUTF());
+            }
+        });
+        LOG.info("Import: {} files were already imported before.", done.size());
+    }
+
+    /**
+     * Imports all files of the tree, which are accepted by the filter, for the given JVM. Returns when
+     * all of them are spooled and scheduled, but not necessarily uploaded.
+     *
+     * @return the number of files which failed and should be imported again
+     */
+    public long run(File root, String jvmId, File uploadDir, FileFilter filter) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(root, jvmId, uploadDir, filter));
+        } finally {
+            pool.shutdown();
+        }
+        LOG.info("Import: {} files imported, {} skipped, {} failed.", imported.get(), skipped.get(), failed.get());
+        return failed.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpoint.close();
+    }
+
+    private void importFile(File f, String jvmId, File uploadDir) {
+        String key = jvmId + "/" + f.getAbsolutePath() + "/" + f.length() + "/" + f.lastModified();
+        if (done.containsKey(key)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        try {
+            GcLogFormat format = skipUndated ? GcLogSniffer.sniff(f, f.getName().endsWith(".gz"), true) : null;
+            String hex = "";
+            if (format != null && !format.isSupported()) {
+                LOG.warn("Import: skipping {}, its {} format can't be processed.", f, format);
+            } else {
+                hex = spooler.spool(f, uploadDir);
+                scheduler.submit(jvmId, new File(uploadDir, hex + SegmentWriter.RAW_SUFFIX), false);
+                scheduler.submit(jvmId, new File(uploadDir, hex + SegmentWriter.EVENTS_SUFFIX), false);
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeUTF(key);
+            dos.writeUTF(hex);
+            checkpoint.append(bos.toByteArray());
+            done.put(key, hex);
+            if (imported.incrementAndGet() % 100 == 0) {
+                LOG.info("Import: {} files imported so far.", imported.get());
+            }
+        } catch (InterruptedException e) {
+            failed.incrementAndGet();
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            failed.incrementAndGet();
+            LOG.error("Import: failed to import " + f + ": " + t.getMessage(), t);
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final File dir;
+        private final String jvmId;
+        private final File uploadDir;
+        private final FileFilter filter;
+
+        private DirectoryTask(File dir, String jvmId, File uploadDir, FileFilter filter) {
+            this.dir = dir;
+            this.jvmId = jvmId;
+            this.uploadDir = uploadDir;
+            this.filter = filter;
+        }
+
+        @Override
+        protected void compute() {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                LOG.warn("Import: unable to list {}.", dir);
+                return;
+            }
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(files.length);
+            for (final File f : files) {
+                if (f.isDirectory()) {
+                    tasks.add(new DirectoryTask(f, jvmId, uploadDir, filter));
+                } else if (f.isFile() && f.length() > 0 && filter.accept(f)) {
+                    tasks.add(new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected void compute() {
+                            importFile(f, jvmId, uploadDir);
+                        }
+                    });
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+}
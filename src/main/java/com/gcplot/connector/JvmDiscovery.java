@@ -0,0 +1,128 @@
+package com.gcplot.connector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the logs dirs of JVMs by a path template like {@code /var/log/pods/{jvm}/gc}, where the
+ * {@code {jvm}} placeholder matches the JVM ID. It must be within a single path segment, which
+ * may also have a fixed prefix and suffix, e.g. {@code /var/log/app-{jvm}}. Other segments can
+ * have the {@code *} and {@code ?} wildcards.
+ *
+ * Only the segments with wildcards or the placeholder are listed, the fixed ones are just checked.
+ */
+public class JvmDiscovery {
+    private static final Logger LOG = LoggerFactory.getLogger(JvmDiscovery.class);
+    public static final String JVM_PLACEHOLDER = "{jvm}";
+
+    private final File root;
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    public JvmDiscovery(String template) {
+        int placeholder = template.indexOf(JVM_PLACEHOLDER);
+        if (placeholder < 0 || placeholder != template.lastIndexOf(JVM_PLACEHOLDER)) {
+            throw new IllegalArgumentException("Logs pattern [" + template + "] must contain a single " + JVM_PLACEHOLDER);
+        }
+        File f = new File(template).getAbsoluteFile();
+        List<String> names = new ArrayList<String>();
+        while (f.getParentFile() != null) {
+            names.add(0, f.getName());
+            f = f.getParentFile();
+        }
+        this.root = f;
+        for (String name : names) {
+            segments.add(new Segment(name));
+        }
+    }
+
+    /**
+     * @return logs dirs by JVM ID, which currently exist
+     */
+    public Map<String, File> discover() {
+        Map<String, File> result = new LinkedHashMap<String, File>();
+        walk(root, 0, null, result);
+        return result;
+    }
+
+    private void walk(File dir, int depth, String jvmId, Map<String, File> result) {
+        if (depth == segments.size()) {
+            if (!dir.isDirectory()) {
+                return;
+            }
+            File existing = result.get(jvmId);
+            if (existing == null) {
+                result.put(jvmId, dir);
+            } else {
+                LOG.warn("Discovery: JVM [{}] has several logs dirs, {} is ignored in favor of {}.", jvmId, dir, existing);
+            }
+            return;
+        }
+        Segment segment = segments.get(depth);
+        if (segment.pattern == null) {
+            File child = new File(dir, segment.name);
+            if (child.exists()) {
+                walk(child, depth + 1, jvmId, result);
+            }
+            return;
+        }
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            Matcher m = segment.pattern.matcher(name);
+            if (m.matches()) {
+                walk(new File(dir, name), depth + 1, segment.hasJvm ? m.group(1) : jvmId, result);
+            }
+        }
+    }
+
+    private static class Segment {
+        private final String name;
+        private final boolean hasJvm;
+        private final Pattern pattern;
+
+        private Segment(String name) {
+            this.name = name;
+            this.hasJvm = name.contains(JVM_PLACEHOLDER);
+            if (!hasJvm && name.indexOf('*') < 0 && name.indexOf('?') < 0) {
+                this.pattern = null;
+            } else {
+                StringBuilder regex = new StringBuilder();
+                StringBuilder literal = new StringBuilder();
+                for (int i = 0; i < name.length(); i++) {
+                    char c = name.charAt(i);
+                    if (c == '*' || c == '?' || name.startsWith(JVM_PLACEHOLDER, i)) {
+                        if (literal.length() > 0) {
+                            regex.append(Pattern.quote(literal.toString()));
+                            literal.setLength(0);
+                        }
+                        if (c == '*') {
+                            regex.append(".*");
+                        } else if (c == '?') {
+                            regex.append('.');
+                        } else {
+                            regex.append("(.+)");
+                            i += JVM_PLACEHOLDER.length() - 1;
+                        }
+                    } else {
+                        literal.append(c);
+                    }
+                }
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                }
+                this.pattern = Pattern.compile(regex.toString());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package com.gcplot.connector;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Copies a source log file into the upload directory as {@code <sha1>.log.gz} and/or
+ * {@code <sha1>.events.gz}, where sha1 is the digest of the uncompressed content.
+ *
+ * The digest is calculated while compressing into temp files, so the source is read
+ * only once, and the temp files are then atomically renamed to their final names.
+ *
+ * Alternatively, the source can be {@link #upload uploaded} straight away, without the copy.
+ */
+public class LogSpooler {
+    private static final Logger LOG = LoggerFactory.getLogger(LogSpooler.class);
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int INFLATER_BYTES = 64 * 1024;
+    private final Compressor compressor;
+    private final UploadFormat format;
+
+    public LogSpooler(Compressor compressor, UploadFormat format) {
+        this.compressor = compressor;
+        this.format = format;
+    }
+
+    /**
+     * @return the SHA1 hex of the uncompressed content of {@code f}
+     */
+    public String spool(File f, File targetDir) throws IOException {
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        boolean gzipped = f.getName().endsWith(".gz");
+        // compressed sources are usually about 10 times smaller
+        long expectedSize = gzipped ? f.length() * 10 : f.length();
+        BufferPool pool = compressor.getPool();
+        long reserved = pool.reserve(SegmentWriter.footprint(compressor, format, expectedSize, false) + BUFFER_SIZE
+                + (gzipped ? BUFFER_SIZE + INFLATER_BYTES : 0));
+        try {
+            return spool(f, targetDir, gzipped, expectedSize, digest);
+        } finally {
+            pool.release(reserved);
+        }
+    }
+
+    /**
+     * Compresses {@code f} straight into the uploads of {@code <sha1>.log.gz} and/or {@code <sha1>.events.gz},
+     * which are recorded in the index once complete. As the objects are named by the digest, the source
+     * is read twice: for the digest, and then for the upload, which is skipped if the index already has it.
+     *
+     * @return the SHA1 hex of the uncompressed content of {@code f}
+     */
+    public String upload(File f, S3ResourceManager rm, String jvmId, UploadIndex index) throws IOException {
+        boolean gzipped = f.getName().endsWith(".gz");
+        long expectedSize = gzipped ? f.length() * 10 : f.length();
+        BufferPool pool = compressor.getPool();
+        long reserved = pool.reserve(SegmentWriter.footprint(compressor, format, expectedSize, true) + BUFFER_SIZE
+                + (gzipped ? BUFFER_SIZE + INFLATER_BYTES : 0));
+        byte[] buf = pool.buffer(BUFFER_SIZE);
+        try {
+            MessageDigest digest = DigestUtils.getSha1Digest();
+            InputStream is = open(f, gzipped);
+            try {
+                long total = 0;
+                int read;
+                while ((read = is.read(buf)) != -1) {
+                    digest.update(buf, 0, read);
+                    total += read;
+                }
+                Metrics.BYTES_HASHED.add(total);
+            } finally {
+                is.close();
+            }
+            String hex = Hex.encodeHexString(digest.digest());
+            List<String> names = new ArrayList<String>(2);
+            if (format.hasRaw()) {
+                names.add(hex + SegmentWriter.RAW_SUFFIX);
+            }
+            if (format.hasEvents()) {
+                names.add(hex + SegmentWriter.EVENTS_SUFFIX);
+            }
+            boolean uploaded = true;
+            for (String name : names) {
+                uploaded &= index.contains(jvmId, name);
+            }
+            if (uploaded) {
+                LOG.debug("File Sync: {} is already uploaded as {}", f.getName(), hex);
+                return hex;
+            }
+            SegmentWriter writer = new SegmentWriter(compressor, format, rm, jvmId, hex, expectedSize);
+            try {
+                is = open(f, gzipped);
+                try {
+                    long total = 0;
+                    int read;
+                    while ((read = is.read(buf)) != -1) {
+                        writer.write(buf, 0, read);
+                        total += read;
+                    }
+                    Metrics.BYTES_COMPRESSED_IN.add(total);
+                } finally {
+                    is.close();
+                }
+                writer.commit(hex);
+            } finally {
+                writer.abort();
+            }
+            for (String name : names) {
+                index.add(jvmId, name);
+            }
+            LOG.debug("File Sync: Uploaded {} as {}", f.getName(), names);
+            return hex;
+        } finally {
+            pool.recycle(buf);
+            pool.release(reserved);
+        }
+    }
+
+    private String spool(File f, File targetDir, boolean gzipped, long expectedSize, MessageDigest digest)
+            throws IOException {
+        SegmentWriter writer = new SegmentWriter(compressor, format, targetDir, "spool-", expectedSize);
+        byte[] buf = compressor.getPool().buffer(BUFFER_SIZE);
+        try {
+            InputStream is = open(f, gzipped);
+            try {
+                long total = 0;
+                int read;
+                while ((read = is.read(buf)) != -1) {
+                    digest.update(buf, 0, read);
+                    writer.write(buf, 0, read);
+                    total += read;
+                }
+                Metrics.BYTES_HASHED.add(total);
+                Metrics.BYTES_COMPRESSED_IN.add(total);
+            } finally {
+                is.close();
+            }
+            String hex = Hex.encodeHexString(digest.digest());
+            LOG.debug("File Sync: Copied {} to {}", f.getName(), writer.commit(hex));
+            return hex;
+        } finally {
+            compressor.getPool().recycle(buf);
+            writer.abort();
+        }
+    }
+
+    private static InputStream open(File f, boolean gzipped) throws IOException {
+        InputStream is = new FileInputStream(f);
+        if (gzipped) {
+            try {
+                is = new GZIPInputStream(is, BUFFER_SIZE);
+            } catch (IOException e) {
+                is.close();
+                throw e;
+            }
+        }
+        return is;
+    }
+
+}
@@ -0,0 +1,250 @@
+package com.gcplot.connector;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ships the active (currently written) GC log file incrementally: only complete
+ * lines appended since the previous call are compressed into a delta segment,
+ * so the cost of a sync doesn't depend on the overall size of the file.
+ *
+ * Segments are named {@code <streamId>-<offset>.log.gz} (or {@code .events.gz}), where
+ * offset is zero-padded, so that the segments of the same stream are ordered by name.
+ */
+public class LogTailer {
+    private static final Logger LOG = LoggerFactory.getLogger(LogTailer.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int INFLATER_BYTES = 64 * 1024;
+    static final String TEMP_SUFFIX = ".tmp";
+    private final Compressor compressor;
+    private final UploadFormat format;
+
+    public LogTailer(Compressor compressor, UploadFormat format) {
+        this.compressor = compressor;
+        this.format = format;
+    }
+
+    /**
+     * Reserves the memory of shipping {@code f} after {@code offset}. The reservation waits while the
+     * budget is taken by the other spools, so it's made before the state of the file is locked.
+     *
+     * @return the reservation, which is passed to {@link #tail} or {@link #finish} and then released
+     */
+    public Reservation reserve(File f, long offset) throws InterruptedIOException {
+        boolean gzipped = f.getName().endsWith(".gz");
+        long length = f.length();
+        // a shorter file is shipped from the start
+        long expectedSize = gzipped ? -1 : length >= offset ? length - offset : length;
+        return new Reservation(compressor.getPool(), expectedSize, compressor.getPool().reserve(
+                SegmentWriter.footprint(compressor, format, expectedSize, false) + BUFFER_SIZE
+                        + (gzipped ? INFLATER_BYTES : 0)));
+    }
+
+    /**
+     * Compresses all complete lines of {@code f} after {@link SourceState#getOffset()} into
+     * a new segment in {@code targetDir} and advances the state.
+     *
+     * @return the created segment files, or an empty list if there was nothing new to ship
+     */
+    public List<File> tail(File f, SourceState state, File targetDir, Reservation reservation) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (state.getStreamId() == null || size < state.getOffset() || !headMatches(f, state)) {
+                LOG.debug("Tailer: starting new stream for {} [size={}, offset={}]", f.getName(), size, state.getOffset());
+                state.setStreamId(newStreamId(f));
+                state.setOffset(0);
+                state.setHead(null);
+                state.setParser(null);
+            }
+            long start = state.getOffset();
+            BufferPool pool = compressor.getPool();
+            byte[] bytes = pool.buffer(BUFFER_SIZE);
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                long end = lastLineEnd(channel, start, size, buf);
+                if (end <= start) {
+                    return Collections.emptyList();
+                }
+                String name = String.format("%s-%019d", state.getStreamId(), start);
+                LOG.debug("Tailer: shipping {} [{}..{}) to {}", f.getName(), start, end, name);
+                SegmentWriter writer = new SegmentWriter(compressor, format, targetDir, name,
+                        reservation.expectedSize(end - start), state.getParser());
+                try {
+                    channel.position(start);
+                    long remaining = end - start;
+                    while (remaining > 0) {
+                        buf.clear();
+                        if (remaining < buf.capacity()) {
+                            buf.limit((int) remaining);
+                        }
+                        int read = channel.read(buf);
+                        if (read < 0) {
+                            throw new EOFException("Unexpected end of " + f + " at " + (end - remaining));
+                        }
+                        writer.write(bytes, 0, read);
+                        remaining -= read;
+                    }
+                    Metrics.BYTES_COMPRESSED_IN.add(end - start);
+                    List<File> segments = writer.commit(name);
+                    state.setOffset(end);
+                    state.setParser(writer.getParser());
+                    if (state.getHead() == null || FileIdentity.headLength(state.getHead()) < Math.min(FileIdentity.BLOCK_SIZE, end)) {
+                        state.setHead(FileIdentity.head(f, false, (int) Math.min(FileIdentity.BLOCK_SIZE, end)));
+                    }
+                    return segments;
+                } finally {
+                    writer.abort();
+                }
+            } finally {
+                pool.recycle(bytes);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Ships the rest of the rotated file, which was the active one of the stream, after
+     * {@link SourceState#getOffset()} and advances the state. The last line is shipped even if it's not
+     * terminated, as nothing is appended to the rotated file anymore. Compressed files are supported.
+     *
+     * @return the created segment files, or null if the file is shorter than the shipped part of the stream
+     */
+    public List<File> finish(File f, SourceState state, File targetDir, Reservation reservation) throws IOException {
+        boolean gzipped = f.getName().endsWith(".gz");
+        long start = state.getOffset();
+        BufferPool pool = compressor.getPool();
+        long expectedSize = reservation.expectedSize(gzipped ? -1 : f.length() - start);
+        byte[] buf = pool.buffer(BUFFER_SIZE);
+        try {
+            FileInputStream fis = new FileInputStream(f);
+            InputStream in = fis;
+            try {
+                if (gzipped) {
+                    in = new GZIPInputStream(fis, BUFFER_SIZE);
+                    if (!skipFully(in, start, buf)) {
+                        return null;
+                    }
+                } else if (fis.getChannel().size() < start) {
+                    return null;
+                } else {
+                    fis.getChannel().position(start);
+                }
+                int read = in.read(buf);
+                if (read < 0) {
+                    return Collections.emptyList();
+                }
+                String name = String.format("%s-%019d", state.getStreamId(), start);
+                LOG.debug("Tailer: shipping the rest of {} from {} to {}", f.getName(), start, name);
+                SegmentWriter writer = new SegmentWriter(compressor, format, targetDir, name, expectedSize,
+                        state.getParser());
+                try {
+                    long total = 0;
+                    do {
+                        writer.write(buf, 0, read);
+                        total += read;
+                    } while ((read = in.read(buf)) != -1);
+                    Metrics.BYTES_COMPRESSED_IN.add(total);
+                    List<File> segments = writer.commit(name);
+                    state.setOffset(start + total);
+                    state.setParser(writer.getParser());
+                    return segments;
+                } finally {
+                    writer.abort();
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            pool.recycle(buf);
+        }
+    }
+
+    /**
+     * @return false if the stream ended before {@code n} bytes were skipped, compressed streams can't seek
+     */
+    private static boolean skipFully(InputStream in, long n, byte[] buf) throws IOException {
+        while (n > 0) {
+            int read = in.read(buf, 0, (int) Math.min(buf.length, n));
+            if (read < 0) {
+                return false;
+            }
+            n -= read;
+        }
+        return true;
+    }
+
+    private static boolean headMatches(File f, SourceState state) throws IOException {
+        String head = state.getHead();
+        return head == null || head.equals(FileIdentity.head(f, false, FileIdentity.headLength(head)));
+    }
+
+    /**
+     * @return the position right after the last '\n' in [start, size), or start if there is none
+     */
+    private long lastLineEnd(FileChannel channel, long start, long size, ByteBuffer buf) throws IOException {
+        long pos = size;
+        while (pos > start) {
+            int len = (int) Math.min(buf.capacity(), pos - start);
+            pos -= len;
+            buf.clear();
+            buf.limit(len);
+            int read = 0;
+            while (read < len) {
+                int r = channel.read(buf, pos + read);
+                if (r < 0) {
+                    break;
+                }
+                read += r;
+            }
+            for (int i = read - 1; i >= 0; i--) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+        }
+        return start;
+    }
+
+    private String newStreamId(File f) {
+        return DigestUtils.sha1Hex(f.getAbsolutePath() + ":" + System.nanoTime() + ":" + System.currentTimeMillis());
+    }
+
+    /**
+     * Memory reserved by {@link #reserve(File, long)} for a segment of the expected size.
+     */
+    public static class Reservation {
+        private final BufferPool pool;
+        private final long expectedSize;
+        private final long amount;
+
+        private Reservation(BufferPool pool, long expectedSize, long amount) {
+            this.pool = pool;
+            this.expectedSize = expectedSize;
+            this.amount = amount;
+        }
+
+        /**
+         * @return the size of the segment, as far as it fits the reservation, which is made for the
+         * file before its state is locked, so the segment may turn out larger, e.g. of a new stream
+         */
+        long expectedSize(long size) {
+            return expectedSize < 0 || size < 0 ? -1 : Math.min(size, expectedSize);
+        }
+
+        public void release() {
+            pool.release(amount);
+        }
+    }
+
+}
@@ -0,0 +1,370 @@
+package com.gcplot.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of the connector metrics. Updating a metric is a single atomic operation,
+ * gauges are only evaluated when the metrics are read.
+ *
+ * The metrics are exposed as attributes of the {@code com.gcplot.connector:type=Metrics} MBean
+ * and, if enabled, in the Prometheus text format at {@code http://localhost:<port>/metrics}.
+ */
+public abstract class Metrics {
+    private static final Logger LOG = LoggerFactory.getLogger(Metrics.class);
+    private static final String PREFIX = "gcpc_";
+    private static final List<Metric> METRICS = new CopyOnWriteArrayList<Metric>();
+
+    public static final Counter FILES_SCANNED = counter("files_scanned_total", "Source files checked for changes.");
+    public static final Counter BYTES_HASHED = counter("bytes_hashed_total", "Uncompressed bytes digested.");
+    public static final Counter BYTES_COMPRESSED_IN = counter("bytes_compressed_in_total", "Uncompressed bytes fed to the compressor.");
+    public static final Counter GC_EVENTS = counter("gc_events_total", "GC events parsed for the events upload format.");
+    public static final Counter BYTES_COMPRESSED_OUT = counter("bytes_compressed_out_total", "Compressed bytes written to the spool.");
+    public static final Counter BYTES_UPLOADED = counter("bytes_uploaded_total", "Bytes uploaded to the storage.");
+    public static final Counter UPLOADS = counter("uploads_total", "Objects uploaded to the storage.");
+    public static final Counter UPLOAD_FAILURES = counter("upload_failures_total", "Failed object uploads.");
+    public static final Counter UPLOAD_RETRIES = counter("upload_retries_total", "Failed file uploads scheduled again.");
+    public static final Counter DEAD_LETTERS = counter("dead_letters_total", "Files moved to the dead-letter dir after failed uploads.");
+    public static final Counter DIRECT_UPLOAD_FALLBACKS = counter("direct_upload_fallbacks_total", "Direct uploads, which failed and were spooled instead.");
+    public static final Counter UPLOADS_IN_FLIGHT = counter("uploads_in_flight", "Object uploads in progress.");
+    public static final Histogram PART_LATENCY = histogram("upload_part_seconds", "Latency of a single part upload.");
+    public static final Histogram OBJECT_LATENCY = histogram("upload_object_seconds", "Latency of a whole object upload.");
+    public static final Histogram RELOAD_LATENCY = histogram("config_reload_seconds", "Latency of the configuration reload.");
+
+    static {
+        gauge("process_cpu_seconds_total", "CPU time used by the connector process.", new Supplier<Map<String, Double>>() {
+            @Override
+            public Map<String, Double> get() {
+                java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+                if (os instanceof com.sun.management.OperatingSystemMXBean) {
+                    return Collections.singletonMap("", ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() / 1e9);
+                }
+                return Collections.emptyMap();
+            }
+        });
+        gauge("jvm_heap_used_bytes", "Used heap of the connector process.", new Supplier<Map<String, Double>>() {
+            @Override
+            public Map<String, Double> get() {
+                return Collections.singletonMap("", (double) ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+            }
+        });
+        gauge("process_read_bytes_total", "Bytes read from the storage by the process (Linux only).",
+                new Supplier<Map<String, Double>>() {
+            @Override
+            public Map<String, Double> get() {
+                return processIo("read_bytes:");
+            }
+        });
+        gauge("process_write_bytes_total", "Bytes written to the storage by the process (Linux only).",
+                new Supplier<Map<String, Double>>() {
+            @Override
+            public Map<String, Double> get() {
+                return processIo("write_bytes:");
+            }
+        });
+        gauge("compression_ratio", "Ratio of uncompressed to compressed bytes.", new Supplier<Map<String, Double>>() {
+            @Override
+            public Map<String, Double> get() {
+                long out = BYTES_COMPRESSED_OUT.get();
+                return Collections.singletonMap("", out == 0 ? 0d : (double) BYTES_COMPRESSED_IN.get() / out);
+            }
+        });
+    }
+
+    /**
+     * @return the given field of {@code /proc/self/io}, if available
+     */
+    private static Map<String, Double> processIo(String field) {
+        File io = new File("/proc/self/io");
+        if (io.canRead()) {
+            try {
+                for (String line : Files.readAllLines(io.toPath(), StandardCharsets.US_ASCII)) {
+                    if (line.startsWith(field)) {
+                        return Collections.singletonMap("", Double.parseDouble(line.substring(field.length()).trim()));
+                    }
+                }
+            } catch (Throwable ignored) {
+            }
+        }
+        return Collections.emptyMap();
+    }
+
+    public static Counter counter(String name, String help) {
+        Counter c = new Counter(PREFIX + name, help);
+        METRICS.add(c);
+        return c;
+    }
+
+    public static Histogram histogram(String name, String help) {
+        Histogram h = new Histogram(PREFIX + name, help);
+        METRICS.add(h);
+        return h;
+    }
+
+    /**
+     * Registers a gauge family, which values are keyed by the value of {@code jvm} label
+     * (empty key for the value without a label).
+     */
+    public static void gauge(String name, String help, Supplier<Map<String, Double>> values) {
+        METRICS.add(new Gauge(PREFIX + name, help, values));
+    }
+
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                    new ObjectName("com.gcplot.connector:type=Metrics"));
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+        }
+    }
+
+    public static HttpServer startHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = prometheus().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                try {
+                    os.write(body);
+                } finally {
+                    os.close();
+                }
+            }
+        });
+        server.start();
+        LOG.info("Metrics are available at http://localhost:{}/metrics", port);
+        return server;
+    }
+
+    public static String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Metric m : METRICS) {
+            sb.append("# HELP ").append(m.name).append(' ').append(m.help).append('\n');
+            sb.append("# TYPE ").append(m.name).append(' ').append(m.type()).append('\n');
+            m.writeTo(sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return flat view of all the metrics values, as they are exposed via JMX
+     */
+    public static Map<String, Double> snapshot() {
+        Map<String, Double> result = new TreeMap<String, Double>();
+        for (Metric m : METRICS) {
+            m.collect(result);
+        }
+        return result;
+    }
+
+    public static abstract class Metric {
+        protected final String name;
+        protected final String help;
+
+        protected Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        protected abstract String type();
+
+        protected abstract void writeTo(StringBuilder sb);
+
+        protected abstract void collect(Map<String, Double> values);
+    }
+
+    public static class Counter extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void dec() {
+            value.decrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        protected String type() {
+            return name.endsWith("_total") ? "counter" : "gauge";
+        }
+
+        @Override
+        protected void writeTo(StringBuilder sb) {
+            sb.append(name).append(' ').append(value.get()).append('\n');
+        }
+
+        @Override
+        protected void collect(Map<String, Double> values) {
+            values.put(name, (double) value.get());
+        }
+    }
+
+    public static class Histogram extends Metric {
+        private static final double[] BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300 };
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        private Histogram(String name, String help) {
+            super(name, help);
+        }
+
+        /**
+         * @param startNanos the value of {@link System#nanoTime()} when the operation started
+         */
+        public void observeSince(long startNanos) {
+            observe(System.nanoTime() - startNanos);
+        }
+
+        public void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < BUCKETS.length && seconds > BUCKETS[i]) {
+                i++;
+            }
+            counts.incrementAndGet(i);
+            sumNanos.addAndGet(nanos);
+        }
+
+        @Override
+        protected String type() {
+            return "histogram";
+        }
+
+        @Override
+        protected void writeTo(StringBuilder sb) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += counts.get(i);
+                sb.append(name).append("_bucket{le=\"").append(BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += counts.get(BUCKETS.length);
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            sb.append(name).append("_sum ").append(sumNanos.get() / 1e9).append('\n');
+            sb.append(name).append("_count ").append(cumulative).append('\n');
+        }
+
+        @Override
+        protected void collect(Map<String, Double> values) {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            values.put(name + "_count", (double) count);
+            values.put(name + "_avg", count == 0 ? 0d : sumNanos.get() / 1e9 / count);
+        }
+    }
+
+    private static class Gauge extends Metric {
+        private final Supplier<Map<String, Double>> values;
+
+        private Gauge(String name, String help, Supplier<Map<String, Double>> values) {
+            super(name, help);
+            this.values = values;
+        }
+
+        @Override
+        protected String type() {
+            return "gauge";
+        }
+
+        @Override
+        protected void writeTo(StringBuilder sb) {
+            for (Map.Entry<String, Double> e : values.get().entrySet()) {
+                sb.append(name);
+                if (!e.getKey().isEmpty()) {
+                    sb.append("{jvm=\"").append(e.getKey().replace("\\", "\\\\").replace("\"", "\\\"")).append("\"}");
+                }
+                sb.append(' ').append(e.getValue()).append('\n');
+            }
+        }
+
+        @Override
+        protected void collect(Map<String, Double> values) {
+            for (Map.Entry<String, Double> e : this.values.get().entrySet()) {
+                values.put(e.getKey().isEmpty() ? name : name + "." + e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private static class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Double value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Double> snapshot = snapshot();
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                if (snapshot.containsKey(a)) {
+                    list.add(new Attribute(a, snapshot.get(a)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "GCPlot Connector metrics",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only.");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+package com.gcplot.connector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip stream, which splits the input into blocks and deflates them concurrently.
+ *
+ * Every block becomes a complete gzip member, and the members are written in order,
+ * so the result is a valid multi-member gzip stream which is read by any gzip reader
+ * (including {@link java.util.zip.GZIPInputStream}) as the original content. At most
+ * {@code maxInFlight} blocks are being compressed at a time, so the memory footprint
+ * is bounded by {@code maxInFlight * blockSize}. Blocks and deflaters are taken from the {@link BufferPool}.
+ * An empty input is written as a single empty member, so it's still a valid gzip stream.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    private static final byte[] HEADER = new byte[] {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final BufferPool pool;
+    private final int level;
+    private final int blockSize;
+    private final int maxInFlight;
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+    private byte[] block;
+    private int blockLength;
+    private boolean submitted;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, BufferPool pool, int level,
+                                    int blockSize, int maxInFlight) {
+        this.out = out;
+        this.executor = executor;
+        this.pool = pool;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.block = pool.buffer(blockSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (blockLength > 0 || !submitted) {
+                submitBlock();
+            }
+            while (!inFlight.isEmpty()) {
+                writeFirst();
+            }
+        } finally {
+            pool.recycle(block);
+            block = null;
+            for (Future<byte[]> f : inFlight) {
+                f.cancel(true);
+            }
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] data = block;
+        final int length = blockLength;
+        if (inFlight.size() >= maxInFlight) {
+            writeFirst();
+        }
+        inFlight.addLast(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                try {
+                    return member(data, length, level, pool);
+                } finally {
+                    pool.recycle(data);
+                }
+            }
+        }));
+        block = pool.buffer(blockSize);
+        blockLength = 0;
+        submitted = true;
+    }
+
+    private void writeFirst() throws IOException {
+        try {
+            out.write(inFlight.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return complete gzip member with the given data
+     */
+    static byte[] member(byte[] data, int length, int level, BufferPool pool) {
+        Deflater deflater = pool.deflater(level);
+        try {
+            return member(data, length, deflater);
+        } finally {
+            pool.recycle(deflater);
+        }
+    }
+
+    private static byte[] member(byte[] data, int length, Deflater deflater) {
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        // deflate never expands data by more than 5 bytes per 16K block plus some constant
+        byte[] result = new byte[HEADER.length + length + (length >> 12) + 64 + 8];
+        System.arraycopy(HEADER, 0, result, 0, HEADER.length);
+        int pos = HEADER.length;
+        while (!deflater.finished()) {
+            if (pos == result.length - 8) {
+                byte[] grown = new byte[result.length * 2];
+                System.arraycopy(result, 0, grown, 0, pos);
+                result = grown;
+            }
+            pos += deflater.deflate(result, pos, result.length - 8 - pos);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        pos = writeIntLE(result, pos, (int) crc.getValue());
+        pos = writeIntLE(result, pos, length);
+        if (pos == result.length) {
+            return result;
+        }
+        byte[] trimmed = new byte[pos];
+        System.arraycopy(result, 0, trimmed, 0, pos);
+        return trimmed;
+    }
+
+    private static int writeIntLE(byte[] b, int pos, int v) {
+        b[pos] = (byte) v;
+        b[pos + 1] = (byte) (v >>> 8);
+        b[pos + 2] = (byte) (v >>> 16);
+        b[pos + 3] = (byte) (v >>> 24);
+        return pos + 4;
+    }
+
+}
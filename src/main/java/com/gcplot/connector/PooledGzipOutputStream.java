@@ -0,0 +1,85 @@
+package com.gcplot.connector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Same as {@link java.util.zip.GZIPOutputStream}, but its deflater and buffer are taken from
+ * the {@link BufferPool}, and are returned there on {@link #close()}.
+ */
+public class PooledGzipOutputStream extends DeflaterOutputStream {
+    private static final byte[] HEADER = new byte[] {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private final BufferPool pool;
+    private final CRC32 crc = new CRC32();
+    private boolean closed;
+
+    public PooledGzipOutputStream(OutputStream out, BufferPool pool, int level, int bufferSize) throws IOException {
+        // the buffer of the super constructor is replaced right away
+        super(out, pool.deflater(level), 1);
+        this.pool = pool;
+        this.buf = pool.buffer(bufferSize);
+        out.write(HEADER);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (!def.finished()) {
+            def.finish();
+            while (!def.finished()) {
+                int len = def.deflate(buf, 0, buf.length);
+                if (def.finished() && len <= buf.length - 8) {
+                    writeTrailer(buf, len);
+                    out.write(buf, 0, len + 8);
+                    return;
+                }
+                if (len > 0) {
+                    out.write(buf, 0, len);
+                }
+            }
+            byte[] trailer = new byte[8];
+            writeTrailer(trailer, 0);
+            out.write(trailer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+        } finally {
+            try {
+                out.close();
+            } finally {
+                pool.recycle(def);
+                pool.recycle(buf);
+            }
+        }
+    }
+
+    private void writeTrailer(byte[] b, int pos) {
+        writeIntLE(b, pos, (int) crc.getValue());
+        writeIntLE(b, pos + 4, def.getTotalIn());
+    }
+
+    private static void writeIntLE(byte[] b, int pos, int v) {
+        b[pos] = (byte) v;
+        b[pos + 1] = (byte) (v >>> 8);
+        b[pos + 2] = (byte) (v >>> 16);
+        b[pos + 3] = (byte) (v >>> 24);
+    }
+
+}
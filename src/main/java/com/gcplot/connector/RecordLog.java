@@ -0,0 +1,184 @@
+package com.gcplot.connector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of {@code [length][crc32][payload]} records, the storage behind
+ * the connector journals.
+ *
+ * A torn write after a crash is detected on {@link #replay(Handler)}, which reads the file
+ * through a memory-mapped buffer and truncates it to the last valid record.
+ * {@link #rewrite(Iterable)} atomically replaces the whole content with the given records.
+ */
+public class RecordLog implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(RecordLog.class);
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private final File file;
+    private final int magic;
+    private final int version;
+    private FileChannel channel;
+    private long records;
+
+    public RecordLog(File file, int magic, int version) {
+        this.file = file;
+        this.magic = magic;
+        this.version = version;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of records in the log, including the overwritten ones
+     */
+    public synchronized long records() {
+        return records;
+    }
+
+    /**
+     * Reads all valid records of the log, in the order they were appended.
+     */
+    public synchronized void replay(Handler handler) throws IOException {
+        records = 0;
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return;
+        }
+        long validEnd = HEADER_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.getInt() != magic || buf.getInt() != version) {
+                LOG.warn("Record Log: {} has unknown format, ignoring it.", file);
+                return;
+            }
+            CRC32 crc = new CRC32();
+            while (buf.remaining() >= 8) {
+                int length = buf.getInt();
+                int checksum = buf.getInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE || length > buf.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buf.get(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                handler.onRecord(payload);
+                records++;
+                validEnd = buf.position();
+            }
+            if (validEnd < ch.size()) {
+                LOG.warn("Record Log: truncating {} torn bytes at the end of {}.", ch.size() - validEnd, file);
+                ch.truncate(validEnd);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    public synchronized void append(byte[] payload) throws IOException {
+        if (channel == null) {
+            open();
+        }
+        ByteBuffer buf = record(payload);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        records++;
+    }
+
+    /**
+     * Replaces the content of the log with the given records.
+     */
+    public synchronized void rewrite(Iterable<byte[]> payloads) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".compact");
+        FileChannel out = new RandomAccessFile(temp, "rw").getChannel();
+        long count = 0;
+        try {
+            out.truncate(0);
+            out.write(header());
+            for (byte[] payload : payloads) {
+                out.write(record(payload));
+                count++;
+            }
+            out.force(true);
+        } finally {
+            out.close();
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file + " with " + temp);
+        }
+        records = count;
+        open();
+    }
+
+    /**
+     * Forces all appended records to the storage device.
+     */
+    public synchronized void sync() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        if (channel.size() < HEADER_SIZE) {
+            channel.truncate(0);
+            channel.write(header());
+        }
+        channel.position(channel.size());
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.putInt(magic).putInt(version);
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer record(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer buf = ByteBuffer.allocate(8 + payload.length);
+        buf.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        buf.flip();
+        return buf;
+    }
+
+    public interface Handler {
+
+        void onRecord(byte[] payload) throws IOException;
+
+    }
+
+}
@@ -8,6 +8,7 @@ import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.google.common.base.Objects;
 import com.google.common.base.Strings;
 
 /**
@@ -15,6 +16,9 @@ import com.google.common.base.Strings;
  *         3/28/17
  */
 public class S3Connector {
+    private static final int MAX_ERROR_RETRY = 2;
+    private static final int CONNECTION_TIMEOUT_MS = 10000;
+    private static final int SOCKET_TIMEOUT_MS = 60000;
     private String bucket;
     private String accessKey;
     private String secretKey;
@@ -33,12 +37,16 @@ public class S3Connector {
                 .withCredentials(new AWSStaticCredentialsProvider(credentials))
                 .withClientConfiguration(new ClientConfiguration()
                         .withMaxConnections(Runtime.getRuntime().availableProcessors() * 10)
-                        .withMaxErrorRetry(50));
-        if (!Strings.isNullOrEmpty(region)) {
-            builder = builder.withRegion(region);
-        }
+                        // failed uploads are retried by the upload queue, which doesn't hold a thread meanwhile
+                        .withMaxErrorRetry(MAX_ERROR_RETRY)
+                        .withConnectionTimeout(CONNECTION_TIMEOUT_MS)
+                        .withSocketTimeout(SOCKET_TIMEOUT_MS));
         if (!Strings.isNullOrEmpty(endpoint)) {
-            builder = builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, null));
+            // S3-compatible storages usually don't support virtual-hosted buckets
+            builder = builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region))
+                    .withPathStyleAccessEnabled(true);
+        } else if (!Strings.isNullOrEmpty(region)) {
+            builder = builder.withRegion(region);
         }
         this.client = builder.build();
     }
@@ -47,6 +55,27 @@ public class S3Connector {
         return client;
     }
 
+    /**
+     * Releases the connection pool of the client, it can't be used afterwards.
+     */
+    public void shutdown() {
+        if (client != null) {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * Whether both connectors point to the same destination with the same credentials.
+     */
+    public boolean hasSameConfig(S3Connector other) {
+        return other != null
+                && Objects.equal(Strings.nullToEmpty(bucket), Strings.nullToEmpty(other.bucket))
+                && Objects.equal(Strings.nullToEmpty(region), Strings.nullToEmpty(other.region))
+                && Objects.equal(Strings.nullToEmpty(accessKey), Strings.nullToEmpty(other.accessKey))
+                && Objects.equal(Strings.nullToEmpty(secretKey), Strings.nullToEmpty(other.secretKey))
+                && Objects.equal(Strings.nullToEmpty(endpoint), Strings.nullToEmpty(other.endpoint));
+    }
+
     public String getBucket() {
         return bucket;
     }
@@ -1,79 +1,556 @@
 package com.gcplot.connector;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.SyncProgressListener;
 import com.amazonaws.services.s3.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 public class S3ResourceManager {
     private static final Logger LOG = LoggerFactory.getLogger(S3ResourceManager.class);
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final long MAX_PART_SIZE = 64L * 1024 * 1024;
+    private static final int TARGET_PARTS = 16;
+    private static final int MAX_PARTS = 10000;
+    /**
+     * Streams are uploaded in parts of the minimal size, as their total size is not known in advance.
+     */
+    static final int STREAM_PART_SIZE = 5 * 1024 * 1024;
+    private static final int STREAM_PARTS_IN_FLIGHT = 1;
+    private static final int STREAM_INITIAL_BUFFER = 64 * 1024;
+    /**
+     * Statuses of the requests, which were rejected because of their content, e.g. EntityTooLarge.
+     */
+    private static final Set<Integer> PERMANENT_STATUSES = new HashSet<Integer>(Arrays.asList(400, 411, 413));
+    private static final int BREAKER_THRESHOLD = 5;
+    private static final long BREAKER_OPEN_MS = 5000;
+    private static final long BREAKER_MAX_OPEN_MS = 5 * 60 * 1000;
+    /**
+     * Delay of the uploads, which came to the manager after it was shut down, as by then
+     * it's replaced by the manager of the reloaded configuration.
+     */
+    private static final long SHUTDOWN_RETRY_MS = 1000;
+    /**
+     * Max memory of a single {@link UploadStream}: the part being filled and the ones being sent.
+     */
+    static final long STREAM_FOOTPRINT = (long) STREAM_PART_SIZE * (STREAM_PARTS_IN_FLIGHT + 1);
     private final S3Connector connector;
+    private final ExecutorService partExecutor;
+    private final int partConcurrency;
+    private final UploadThrottle throttle;
     private final String basePath;
     private final String accountId;
     private final String analyzeId;
+    private final CircuitBreaker breaker;
+    private int inFlight;
+    private boolean retired;
+    private boolean shutdown;
 
-    public S3ResourceManager(S3Connector connector, String basePath, String accountId, String analyzeId) {
+    public S3ResourceManager(S3Connector connector, ExecutorService partExecutor, int partConcurrency,
+                             UploadThrottle throttle, String basePath, String accountId, String analyzeId) {
         this.connector = connector;
+        this.partExecutor = partExecutor;
+        this.partConcurrency = Math.max(1, partConcurrency);
+        this.throttle = throttle;
         this.basePath = basePath;
         this.accountId = accountId;
         this.analyzeId = analyzeId;
+        this.breaker = new CircuitBreaker("S3 " + connector.getBucket(), BREAKER_THRESHOLD, BREAKER_OPEN_MS,
+                BREAKER_MAX_OPEN_MS);
     }
 
-    public void upload(File file, String jvmId) {
-        List<PartETag> partETags = new ArrayList<PartETag>();
+    /**
+     * @return whether the uploads are paused, as the destination keeps failing
+     */
+    public boolean isUnavailable() {
+        return breaker.isOpen();
+    }
+
+    /**
+     * Whether this manager uploads to the same place as the given one would.
+     */
+    public boolean hasSameDestination(S3Connector connector, String basePath, String accountId) {
+        return this.connector.hasSameConfig(connector) && this.basePath.equals(basePath)
+                && this.accountId.equals(accountId);
+    }
+
+    /**
+     * Marks the manager as replaced. Its client is shut down as soon as the
+     * uploads which are still in progress are finished.
+     */
+    public void retire() {
+        boolean doShutdown;
+        synchronized (this) {
+            retired = true;
+            doShutdown = inFlight == 0 && !shutdown;
+            shutdown |= doShutdown;
+        }
+        if (doShutdown) {
+            LOG.debug("S3: Shutting down retired client of {}", connector.getBucket());
+            connector.shutdown();
+        }
+    }
+
+    /**
+     * Uploads the file, or fails with an {@link UploadException}, which is rejected right away while
+     * the destination is unavailable.
+     */
+    public void upload(final File file, String jvmId) throws IOException, InterruptedException {
+        begin();
+        long start = System.nanoTime();
+        try {
+            doUpload(file, jvmId);
+        } finally {
+            Metrics.OBJECT_LATENCY.observeSince(start);
+            end();
+        }
+    }
+
+    /**
+     * Opens a stream, which uploads everything written to it as the {@code fileName} object of the JVM.
+     * Up to {@link #STREAM_PART_SIZE} bytes are buffered, and then they are sent as a part of a multipart
+     * upload, while the next part is being filled. The object is complete once the stream is closed,
+     * unless the stream was aborted. Small objects, which fit into a single part, are just put.
+     */
+    public UploadStream openStream(String jvmId, String fileName) throws UploadException {
+        begin();
+        return new UploadStream(jvmId, key(jvmId, fileName));
+    }
+
+    private void begin() throws UploadException {
+        if (!breaker.allow()) {
+            throw new UploadException("S3: " + connector.getBucket() + " is unavailable.", breaker.getRetryAfterMs());
+        }
+        synchronized (this) {
+            if (shutdown) {
+                throw new UploadException("Resource Manager for " + connector.getBucket() + " is already shut down.",
+                        SHUTDOWN_RETRY_MS);
+            }
+            inFlight++;
+        }
+        Metrics.UPLOADS_IN_FLIGHT.inc();
+    }
+
+    private void end() {
+        Metrics.UPLOADS_IN_FLIGHT.dec();
+        boolean doShutdown;
+        synchronized (this) {
+            inFlight--;
+            doShutdown = retired && inFlight == 0 && !shutdown;
+            shutdown |= doShutdown;
+        }
+        if (doShutdown) {
+            LOG.debug("S3: Shutting down retired client of {}", connector.getBucket());
+            connector.shutdown();
+        }
+    }
 
+    private String key(String jvmId, String fileName) {
         String newPath = Utils.toBase64(accountId) + "/" + analyzeId + "/" + jvmId;
-        newPath = (basePath.length() > 0 ? basePath : "") + newPath + "/" + file.getName();
+        return (basePath.length() > 0 ? basePath : "") + newPath + "/" + fileName;
+    }
+
+    private void doUpload(final File file, final String jvmId) throws IOException, InterruptedException {
+        final String key = key(jvmId, file.getName());
+
+        final long contentLength = file.length();
+        final long partSize = partSize(contentLength);
+        if (contentLength <= partSize) {
+            try {
+                LOG.debug("S3: Putting {} bytes to {}", contentLength, key);
+                connector.getClient().putObject(throttled(new PutObjectRequest(connector.getBucket(), key, file), jvmId));
+                Metrics.UPLOADS.inc();
+                Metrics.BYTES_UPLOADED.add(contentLength);
+                breaker.success();
+            } catch (RuntimeException e) {
+                throw failure(key, e);
+            }
+            return;
+        }
+
         // Step 1: Initialize.
         ObjectMetadata om = new ObjectMetadata();
         InitiateMultipartUploadRequest initRequest;
         InitiateMultipartUploadResult initResponse = null;
+        List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
 
         try {
-            LOG.debug("S3: Uploading to {}", newPath);
-            initRequest = new InitiateMultipartUploadRequest(connector.getBucket(), newPath, om);
+            LOG.debug("S3: Uploading {} bytes to {} in parts of {}", contentLength, key, partSize);
+            initRequest = new InitiateMultipartUploadRequest(connector.getBucket(), key, om);
             initResponse = connector.getClient().initiateMultipartUpload(initRequest);
+            final String uploadId = initResponse.getUploadId();
 
-            long contentLength = file.length();
-            long partSize = 5242880; // Set part size to 5 MB.
-            // Step 2: Upload parts.
+            // Step 2: Upload parts, at most partConcurrency of them at a time.
+            final Semaphore permits = new Semaphore(partConcurrency);
             long filePosition = 0;
             for (int i = 1; filePosition < contentLength; i++) {
-                // Last part can be less than 5 MB. Adjust part size.
-                partSize = Math.min(partSize, (contentLength - filePosition));
-
-                // Create request to upload a part.
-                UploadPartRequest uploadRequest = new UploadPartRequest()
-                        .withBucketName(connector.getBucket()).withKey(newPath)
-                        .withUploadId(initResponse.getUploadId()).withPartNumber(i)
+                // Last part can be less than partSize.
+                final long size = Math.min(partSize, (contentLength - filePosition));
+                final UploadPartRequest uploadRequest = new UploadPartRequest()
+                        .withBucketName(connector.getBucket()).withKey(key)
+                        .withUploadId(uploadId).withPartNumber(i)
                         .withFileOffset(filePosition)
                         .withFile(file)
-                        .withPartSize(partSize);
+                        .withPartSize(size);
+
+                permits.acquire();
+                // fail fast, instead of sending the rest of the file in vain
+                UploadException failed = failedPart(key, parts);
+                if (failed != null) {
+                    permits.release();
+                    throw failed;
+                }
+                try {
+                    parts.add(partExecutor.submit(new Callable<PartETag>() {
+                        @Override
+                        public PartETag call() throws Exception {
+                            long start = System.nanoTime();
+                            try {
+                                PartETag tag = connector.getClient().uploadPart(throttled(uploadRequest, jvmId)).getPartETag();
+                                Metrics.PART_LATENCY.observeSince(start);
+                                Metrics.BYTES_UPLOADED.add(size);
+                                return tag;
+                            } finally {
+                                permits.release();
+                            }
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
 
-                // Upload part and add response to our list.
-                partETags.add(connector.getClient().uploadPart(uploadRequest).getPartETag());
+                filePosition += size;
+            }
 
-                filePosition += partSize;
+            List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+            for (Future<PartETag> part : parts) {
+                try {
+                    partETags.add(part.get());
+                } catch (ExecutionException e) {
+                    throw failure(key, e.getCause());
+                }
             }
 
             // Step 3: Complete.
             CompleteMultipartUploadRequest compRequest = new
                     CompleteMultipartUploadRequest(
                     connector.getBucket(),
-                    newPath,
-                    initResponse.getUploadId(),
+                    key,
+                    uploadId,
                     partETags);
 
             connector.getClient().completeMultipartUpload(compRequest);
-        } catch (Throwable e) {
-            LOG.error(e.getMessage(), e);
+            Metrics.UPLOADS.inc();
+            breaker.success();
+            initResponse = null;
+        } catch (RuntimeException e) {
+            throw failure(key, e);
+        } finally {
             if (initResponse != null) {
-                connector.getClient().abortMultipartUpload(new AbortMultipartUploadRequest(
-                        connector.getBucket(), newPath, initResponse.getUploadId()));
+                for (Future<PartETag> part : parts) {
+                    part.cancel(true);
+                }
+                abort(key, initResponse.getUploadId());
+            }
+        }
+    }
+
+    /**
+     * @return failure of the first finished part, which failed, or null if there is none
+     */
+    private UploadException failedPart(String key, List<Future<PartETag>> parts) throws InterruptedException {
+        for (Future<PartETag> part : parts) {
+            if (part.isDone()) {
+                try {
+                    part.get();
+                } catch (ExecutionException e) {
+                    return failure(key, e.getCause());
+                }
+            }
+        }
+        return null;
+    }
+
+    private void abort(String key, String uploadId) {
+        try {
+            connector.getClient().abortMultipartUpload(new AbortMultipartUploadRequest(
+                    connector.getBucket(), key, uploadId));
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+        }
+    }
+
+    /**
+     * Records the failure of the destination, unless the object itself was rejected by it.
+     */
+    private UploadException failure(String key, Throwable e) {
+        Metrics.UPLOAD_FAILURES.inc();
+        boolean permanent = e instanceof AmazonServiceException
+                && PERMANENT_STATUSES.contains(((AmazonServiceException) e).getStatusCode());
+        if (permanent) {
+            breaker.success();
+        } else {
+            breaker.failure();
+        }
+        return new UploadException("S3: Unable to upload " + key + ": " + e.getMessage(), e, permanent);
+    }
+
+    /**
+     * Makes the request wait for the {@link UploadThrottle} as its content is being sent. The SDK calls
+     * {@link SyncProgressListener}s on the sending thread, so blocking there slows down the request itself.
+     */
+    private <T extends AmazonWebServiceRequest> T throttled(T request, final String jvmId) {
+        if (throttle != null && throttle.isEnabled()) {
+            request.setGeneralProgressListener(new SyncProgressListener() {
+                @Override
+                public void progressChanged(ProgressEvent event) {
+                    if (event.getEventType() == ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT) {
+                        try {
+                            throttle.acquire(jvmId, event.getBytesTransferred());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            });
+        }
+        return request;
+    }
+
+    /**
+     * Part size grows with the object, so that large objects are uploaded in about
+     * {@link #TARGET_PARTS} parts, but never less than the 5 MB required by S3
+     * and never more than {@link #MAX_PARTS} parts.
+     */
+    static long partSize(long contentLength) {
+        long partSize = Math.max(MIN_PART_SIZE, Math.min(MAX_PART_SIZE, contentLength / TARGET_PARTS));
+        return Math.max(partSize, (contentLength + MAX_PARTS - 1) / MAX_PARTS);
+    }
+
+    /**
+     * See {@link #openStream(String, String)}. The stream is not thread safe.
+     */
+    public class UploadStream extends OutputStream {
+        private final String jvmId;
+        private final String key;
+        private final long start = System.nanoTime();
+        private final Semaphore permits = new Semaphore(STREAM_PARTS_IN_FLIGHT);
+        private final Queue<byte[]> freeParts = new ConcurrentLinkedQueue<byte[]>();
+        private final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+        private byte[] buf = new byte[STREAM_INITIAL_BUFFER];
+        private int count;
+        private long total;
+        private String uploadId;
+        private boolean closed;
+        private boolean failed;
+
+        private UploadStream(String jvmId, String key) {
+            this.jvmId = jvmId;
+            this.key = key;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Upload of " + key + " is already closed.");
+            }
+            while (len > 0) {
+                if (count == buf.length) {
+                    if (buf.length < STREAM_PART_SIZE) {
+                        buf = Arrays.copyOf(buf, Math.min(STREAM_PART_SIZE, buf.length * 2));
+                    } else {
+                        sendPart();
+                    }
+                }
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                total += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * @return number of bytes written so far
+         */
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         * Completes the upload. If it fails, the upload is aborted.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            try {
+                if (uploadId == null) {
+                    LOG.debug("S3: Putting {} bytes to {}", count, key);
+                    ObjectMetadata om = new ObjectMetadata();
+                    om.setContentLength(count);
+                    connector.getClient().putObject(throttled(new PutObjectRequest(connector.getBucket(), key,
+                            new ByteArrayInputStream(buf, 0, count), om), jvmId));
+                    Metrics.BYTES_UPLOADED.add(count);
+                } else {
+                    if (count > 0) {
+                        sendPart();
+                    }
+                    List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+                    for (Future<PartETag> part : parts) {
+                        partETags.add(get(part));
+                    }
+                    connector.getClient().completeMultipartUpload(new CompleteMultipartUploadRequest(
+                            connector.getBucket(), key, uploadId, partETags));
+                }
+                Metrics.UPLOADS.inc();
+                breaker.success();
+            } catch (IOException e) {
+                abort();
+                throw e;
+            } catch (RuntimeException e) {
+                UploadException failure = fail(e);
+                abort();
+                throw failure;
+            }
+            closed = true;
+            buf = null;
+            Metrics.OBJECT_LATENCY.observeSince(start);
+            end();
+        }
+
+        /**
+         * Drops everything written so far. Later writes fail, while {@link #close()} does nothing.
+         */
+        public void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            buf = null;
+            if (!failed) {
+                Metrics.UPLOAD_FAILURES.inc();
+            }
+            for (Future<PartETag> part : parts) {
+                part.cancel(true);
+            }
+            try {
+                if (uploadId != null) {
+                    connector.getClient().abortMultipartUpload(new AbortMultipartUploadRequest(
+                            connector.getBucket(), key, uploadId));
+                }
+            } catch (Throwable t) {
+                LOG.error(t.getMessage(), t);
+            } finally {
+                end();
+            }
+        }
+
+        /**
+         * Sends the buffered bytes as the next part, as soon as one of the parts in flight is done.
+         */
+        private void sendPart() throws IOException {
+            if (uploadId == null) {
+                LOG.debug("S3: Streaming to {} in parts of {}", key, STREAM_PART_SIZE);
+                try {
+                    uploadId = connector.getClient().initiateMultipartUpload(new InitiateMultipartUploadRequest(
+                            connector.getBucket(), key, new ObjectMetadata())).getUploadId();
+                } catch (RuntimeException e) {
+                    throw fail(e);
+                }
+            }
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading " + key);
+            }
+            final byte[] data = buf;
+            final int size = count;
+            final UploadPartRequest uploadRequest;
+            try {
+                // fail fast, instead of sending the rest of the stream in vain
+                for (Future<PartETag> part : parts) {
+                    if (part.isDone()) {
+                        get(part);
+                    }
+                }
+                uploadRequest = new UploadPartRequest()
+                        .withBucketName(connector.getBucket()).withKey(key)
+                        .withUploadId(uploadId).withPartNumber(parts.size() + 1)
+                        .withInputStream(new ByteArrayInputStream(data, 0, size))
+                        .withPartSize(size);
+                parts.add(partExecutor.submit(new Callable<PartETag>() {
+                    @Override
+                    public PartETag call() throws Exception {
+                        long start = System.nanoTime();
+                        try {
+                            PartETag tag = connector.getClient().uploadPart(throttled(uploadRequest, jvmId)).getPartETag();
+                            Metrics.PART_LATENCY.observeSince(start);
+                            Metrics.BYTES_UPLOADED.add(size);
+                            return tag;
+                        } finally {
+                            freeParts.add(data);
+                            permits.release();
+                        }
+                    }
+                }));
+            } catch (IOException e) {
+                permits.release();
+                throw e;
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+            byte[] next = freeParts.poll();
+            buf = next != null ? next : new byte[STREAM_PART_SIZE];
+            count = 0;
+        }
+
+        private PartETag get(Future<PartETag> part) throws IOException {
+            try {
+                return part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading " + key);
+            } catch (ExecutionException e) {
+                throw fail(e.getCause());
             }
         }
+
+        private UploadException fail(Throwable e) {
+            failed = true;
+            return failure(key, e);
+        }
     }
-}
\ No newline at end of file
+
+}
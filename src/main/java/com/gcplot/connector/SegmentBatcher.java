@@ -0,0 +1,264 @@
+package com.gcplot.connector;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Groups small spooled files of the same JVM into a single object, so that the per-request
+ * overhead of S3 is paid once per batch instead of once per file.
+ *
+ * As every spooled file is a complete gzip member, the batch is just their concatenation, ordered
+ * by stream and offset, which any gzip reader consumes as a single stream. It starts with an empty gzip
+ * member, which header comment is the manifest: a {@code gcplot-batch 1} line, followed by
+ * a {@code <name> <offset> <length>} line per member, where the offset counts from the end of the
+ * manifest member. Batches are named {@code <sha1>.batch.log.gz} and are never batched again.
+ * Event streams are never batched. A batch is flushed once it reaches {@code maxBytes} or its oldest
+ * member is older than {@code maxAgeMs}.
+ *
+ * The members are kept until the batch is uploaded, so the manifest tells which files can be dropped then.
+ */
+public class SegmentBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentBatcher.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String BATCH_SUFFIX = ".batch.log.gz";
+    private static final String MANIFEST_HEADER = "gcplot-batch 1";
+    private static final int FCOMMENT = 0x10;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    /**
+     * Orders the tail segments {@code <streamId>-<offset>} by stream, and then by offset. The offsets are
+     * zero-padded by {@link LogTailer}, so the segments of the same stream are ordered by their names.
+     */
+    private static final Comparator<File> STREAM_ORDER = new Comparator<File>() {
+        @Override
+        public int compare(File a, File b) {
+            String an = stem(a.getName());
+            String bn = stem(b.getName());
+            int ad = an.lastIndexOf('-');
+            int bd = bn.lastIndexOf('-');
+            int c = (ad < 0 ? an : an.substring(0, ad)).compareTo(bd < 0 ? bn : bn.substring(0, bd));
+            return c != 0 ? c : a.getName().compareTo(b.getName());
+        }
+    };
+    private final long maxBytes;
+    private final long maxAgeMs;
+    private final Listener listener;
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+    public SegmentBatcher(long maxBytes, long maxAgeMs, Listener listener) {
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        this.listener = listener;
+    }
+
+    /**
+     * @return false if the file is too large to be batched and should be uploaded on its own
+     */
+    public boolean add(String jvmId, File f) {
+        if (f.length() >= maxBytes || isBatch(f) || !f.getName().endsWith(SegmentWriter.RAW_SUFFIX)) {
+            return false;
+        }
+        synchronized (batches) {
+            batch(jvmId, System.currentTimeMillis()).add(f);
+        }
+        return true;
+    }
+
+    public static boolean isBatch(File f) {
+        return f.getName().endsWith(BATCH_SUFFIX);
+    }
+
+    /**
+     * Reads the manifest of the batch.
+     *
+     * @return the member files, next to the batch, or an empty list if the batch has no manifest
+     */
+    public static List<File> members(File batch) throws IOException {
+        List<File> members = new ArrayList<File>();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(batch)));
+        try {
+            byte[] header = new byte[10];
+            dis.readFully(header);
+            if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || (header[3] & FCOMMENT) == 0) {
+                return members;
+            }
+            ByteArrayOutputStream comment = new ByteArrayOutputStream();
+            int b;
+            while ((b = dis.read()) > 0) {
+                comment.write(b);
+            }
+            String[] lines = new String(comment.toByteArray(), ISO_8859_1).split("\n");
+            if (!lines[0].equals(MANIFEST_HEADER)) {
+                return members;
+            }
+            for (int i = 1; i < lines.length; i++) {
+                members.add(new File(batch.getParentFile(), lines[i].substring(0, lines[i].indexOf(' '))));
+            }
+        } finally {
+            dis.close();
+        }
+        return members;
+    }
+
+    /**
+     * Writes out all the batches which are either full or old enough. Members of the batches,
+     * which failed to be written, are batched again.
+     */
+    public void flushReady() {
+        long now = System.currentTimeMillis();
+        Map<String, Batch> ready = new HashMap<String, Batch>();
+        synchronized (batches) {
+            Iterator<Map.Entry<String, Batch>> i = batches.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<String, Batch> e = i.next();
+                if (e.getValue().size >= maxBytes || now - e.getValue().created >= maxAgeMs) {
+                    ready.put(e.getKey(), e.getValue());
+                    i.remove();
+                }
+            }
+        }
+        for (Map.Entry<String, Batch> e : ready.entrySet()) {
+            try {
+                flush(e.getKey(), e.getValue());
+            } catch (Throwable t) {
+                LOG.error(t.getMessage(), t);
+                synchronized (batches) {
+                    Batch batch = batch(e.getKey(), e.getValue().created);
+                    for (File member : e.getValue().members) {
+                        batch.add(member);
+                    }
+                }
+            }
+        }
+    }
+
+    private Batch batch(String jvmId, long created) {
+        Batch batch = batches.get(jvmId);
+        if (batch == null) {
+            batch = new Batch(created);
+            batches.put(jvmId, batch);
+        }
+        return batch;
+    }
+
+    private void flush(String jvmId, Batch batch) throws Exception {
+        List<File> members = new ArrayList<File>();
+        StringBuilder manifest = new StringBuilder(MANIFEST_HEADER).append('\n');
+        long offset = 0;
+        for (File member : batch.members) {
+            long length = member.length();
+            if (length > 0) {
+                members.add(member);
+                manifest.append(member.getName()).append(' ').append(offset).append(' ').append(length).append('\n');
+                offset += length;
+            }
+        }
+        if (members.isEmpty()) {
+            return;
+        }
+        File dir = members.get(0).getParentFile();
+        File temp = File.createTempFile("batch-", LogTailer.TEMP_SUFFIX, dir);
+        try {
+            MessageDigest digest = DigestUtils.getSha1Digest();
+            byte[] buf = new byte[BUFFER_SIZE];
+            FileOutputStream fos = new FileOutputStream(temp);
+            try {
+                byte[] head = manifest(manifest.toString());
+                digest.update(head);
+                fos.write(head);
+                for (File member : members) {
+                    InputStream is = new FileInputStream(member);
+                    try {
+                        long total = 0;
+                        int read;
+                        while ((read = is.read(buf)) != -1) {
+                            digest.update(buf, 0, read);
+                            fos.write(buf, 0, read);
+                            total += read;
+                        }
+                        if (total != member.length()) {
+                            throw new IOException("Batcher: " + member + " changed while it was batched.");
+                        }
+                    } finally {
+                        is.close();
+                    }
+                }
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            File target = new File(dir, Hex.encodeHexString(digest.digest()) + BATCH_SUFFIX);
+            boolean created = !target.exists();
+            if (created && !temp.renameTo(target)) {
+                throw new IOException("Unable to rename " + temp + " to " + target);
+            }
+            LOG.debug("Batcher: {} files of {} were batched into {}", members.size(), jvmId, target.getName());
+            try {
+                listener.onBatch(jvmId, target, members);
+            } catch (Exception e) {
+                if (created) {
+                    // the members are batched again
+                    target.delete();
+                }
+                throw e;
+            }
+        } finally {
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * @return an empty gzip member, which header comment is the manifest
+     */
+    private static byte[] manifest(String manifest) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(manifest.length() + 32);
+        // ID1, ID2, CM = deflate, FLG = FCOMMENT, MTIME, XFL, OS = unknown
+        bos.write(new byte[] { 0x1f, (byte) 0x8b, 8, FCOMMENT, 0, 0, 0, 0, 0, (byte) 0xff }, 0, 10);
+        byte[] comment = manifest.getBytes(ISO_8859_1);
+        bos.write(comment, 0, comment.length);
+        bos.write(0);
+        // an empty final deflate block, then CRC32 and ISIZE of no data
+        bos.write(new byte[] { 3, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0, 10);
+        return bos.toByteArray();
+    }
+
+    private static String stem(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    public interface Listener {
+
+        /**
+         * Called when the batch file was written. The members should be dropped only once the batch
+         * is uploaded.
+         */
+        void onBatch(String jvmId, File batch, List<File> members) throws Exception;
+
+    }
+
+    private static class Batch {
+        private final long created;
+        private final SortedSet<File> members = new TreeSet<File>(STREAM_ORDER);
+        private long size;
+
+        private Batch(long created) {
+            this.created = created;
+        }
+
+        private void add(File member) {
+            if (members.add(member)) {
+                size += member.length();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.gcplot.connector;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes log content into the upload directory as a raw {@code .log.gz} copy and/or
+ * a {@code .events.gz} stream of parsed events, depending on the {@link UploadFormat}.
+ *
+ * Both are written to temp files, which are renamed to their final names on {@link #commit(String)},
+ * or straight into the {@link S3ResourceManager.UploadStream}s, when the final name is known in advance.
+ */
+class SegmentWriter {
+    static final String RAW_SUFFIX = ".log.gz";
+    static final String EVENTS_SUFFIX = ".events.gz";
+    private final File targetDir;
+    private final File rawTemp;
+    private final File eventsTemp;
+    private final OutputStream raw;
+    private final GcEventOutputStream events;
+    private final S3ResourceManager.UploadStream rawUpload;
+    private final S3ResourceManager.UploadStream eventsUpload;
+    private boolean closed;
+    private boolean committed;
+
+    SegmentWriter(Compressor compressor, UploadFormat format, File targetDir, String prefix,
+                  long expectedSize) throws IOException {
+        this(compressor, format, targetDir, prefix, expectedSize, null);
+    }
+
+    /**
+     * @param previous parser of the events of the preceding segment of the same stream, or null
+     */
+    SegmentWriter(Compressor compressor, UploadFormat format, File targetDir, String prefix,
+                  long expectedSize, GcEventParser previous) throws IOException {
+        this.targetDir = targetDir;
+        this.rawTemp = format.hasRaw() ? File.createTempFile(prefix, LogTailer.TEMP_SUFFIX, targetDir) : null;
+        this.eventsTemp = format.hasEvents() ? File.createTempFile(prefix, LogTailer.TEMP_SUFFIX, targetDir) : null;
+        OutputStream raw = null;
+        GcEventOutputStream events = null;
+        try {
+            if (rawTemp != null) {
+                raw = compressor.open(new FileOutputStream(rawTemp), expectedSize);
+            }
+            if (eventsTemp != null) {
+                // events are way smaller than the log, so there is no need in parallel compression
+                events = new GcEventOutputStream(compressor.open(new FileOutputStream(eventsTemp), -1), previous);
+            }
+        } catch (IOException e) {
+            if (raw != null) {
+                raw.close();
+            }
+            delete();
+            throw e;
+        }
+        this.raw = raw;
+        this.events = events;
+        this.rawUpload = null;
+        this.eventsUpload = null;
+    }
+
+    /**
+     * Uploads the content as {@code <name>.log.gz} and {@code <name>.events.gz} while it's being written.
+     */
+    SegmentWriter(Compressor compressor, UploadFormat format, S3ResourceManager rm, String jvmId, String name,
+                  long expectedSize) throws IOException {
+        this.targetDir = null;
+        this.rawTemp = null;
+        this.eventsTemp = null;
+        S3ResourceManager.UploadStream rawUpload = null;
+        S3ResourceManager.UploadStream eventsUpload = null;
+        OutputStream raw = null;
+        GcEventOutputStream events = null;
+        try {
+            if (format.hasRaw()) {
+                rawUpload = rm.openStream(jvmId, name + RAW_SUFFIX);
+                raw = compressor.open(rawUpload, expectedSize);
+            }
+            if (format.hasEvents()) {
+                eventsUpload = rm.openStream(jvmId, name + EVENTS_SUFFIX);
+                events = new GcEventOutputStream(compressor.open(eventsUpload, -1));
+            }
+        } catch (IOException e) {
+            abort(rawUpload, raw);
+            abort(eventsUpload, null);
+            throw e;
+        } catch (RuntimeException e) {
+            abort(rawUpload, raw);
+            abort(eventsUpload, null);
+            throw e;
+        }
+        this.raw = raw;
+        this.events = events;
+        this.rawUpload = rawUpload;
+        this.eventsUpload = eventsUpload;
+    }
+
+    /**
+     * @return memory used by the writer, to be reserved in the {@link BufferPool} of the compressor
+     */
+    static long footprint(Compressor compressor, UploadFormat format, long expectedSize, boolean upload) {
+        // the compressed content is smaller than the source, so is the buffer of its upload
+        long uploadFootprint = !upload ? 0 : expectedSize < 0 ? S3ResourceManager.STREAM_FOOTPRINT
+                : Math.min(S3ResourceManager.STREAM_FOOTPRINT, expectedSize * 2 + 64 * 1024);
+        long result = 0;
+        if (format.hasRaw()) {
+            result += compressor.footprint(expectedSize) + uploadFootprint;
+        }
+        if (format.hasEvents()) {
+            result += compressor.footprint(-1) + GcEventOutputStream.FOOTPRINT + uploadFootprint;
+        }
+        return result;
+    }
+
+    /**
+     * @return parser of the events written so far, null if no events are written
+     */
+    public GcEventParser getParser() {
+        return events != null ? events.getParser() : null;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (raw != null) {
+            raw.write(b, off, len);
+        }
+        if (events != null) {
+            events.write(b, off, len);
+        }
+    }
+
+    /**
+     * Finishes the compressed streams.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (raw != null) {
+                raw.close();
+                Metrics.BYTES_COMPRESSED_OUT.add(rawUpload != null ? rawUpload.getCount() : rawTemp.length());
+            }
+        } finally {
+            if (events != null) {
+                events.close();
+                Metrics.BYTES_COMPRESSED_OUT.add(eventsUpload != null ? eventsUpload.getCount() : eventsTemp.length());
+            }
+        }
+    }
+
+    /**
+     * Renames the written files to {@code <name>.log.gz} and {@code <name>.events.gz}. The existing
+     * files are kept, as they have the same content. The uploads are completed instead.
+     *
+     * @return the final files, none for the uploads
+     */
+    public List<File> commit(String name) throws IOException {
+        close();
+        committed = true;
+        List<File> result = new ArrayList<File>(2);
+        if (rawTemp != null) {
+            result.add(rename(rawTemp, new File(targetDir, name + RAW_SUFFIX)));
+        }
+        if (eventsTemp != null) {
+            result.add(rename(eventsTemp, new File(targetDir, name + EVENTS_SUFFIX)));
+        }
+        return result;
+    }
+
+    /**
+     * Closes the streams and deletes the temp files or aborts the uploads, if they weren't committed.
+     */
+    public void abort() {
+        if (!committed) {
+            abort(rawUpload, null);
+            abort(eventsUpload, null);
+        }
+        try {
+            close();
+        } catch (IOException ignored) {
+        } finally {
+            delete();
+        }
+    }
+
+    private void delete() {
+        if (rawTemp != null && rawTemp.exists()) {
+            rawTemp.delete();
+        }
+        if (eventsTemp != null && eventsTemp.exists()) {
+            eventsTemp.delete();
+        }
+    }
+
+    private static void abort(S3ResourceManager.UploadStream upload, OutputStream out) {
+        if (upload != null) {
+            upload.abort();
+        }
+        if (out != null) {
+            try {
+                // returns the pooled resources of the compressor
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static File rename(File temp, File target) throws IOException {
+        if (!target.exists() && !temp.renameTo(target)) {
+            throw new IOException("Unable to rename " + temp + " to " + target);
+        }
+        return target;
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.gcplot.connector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs its tasks one at a time, in the submission order, on a shared {@link Executor}.
+ *
+ * Every task is handed to the shared executor separately, so many serial executors over
+ * a small pool take turns fairly, and none of them holds a thread while it has nothing to do.
+ */
+public class SerialExecutor implements Executor {
+    private static final Logger LOG = LoggerFactory.getLogger(SerialExecutor.class);
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+    private Runnable active;
+
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized void execute(final Runnable r) {
+        tasks.add(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                } catch (Throwable t) {
+                    LOG.error(t.getMessage(), t);
+                } finally {
+                    scheduleNext();
+                }
+            }
+        });
+        if (active == null) {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting for their turn
+     */
+    public synchronized int pending() {
+        return tasks.size();
+    }
+
+    private synchronized void scheduleNext() {
+        if ((active = tasks.poll()) != null) {
+            executor.execute(active);
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.gcplot.connector;
+
+/**
+ * Bookkeeping of a single source log file, which is being tracked
+ * by the connector.
+ */
+public class SourceState {
+    private String name;
+    private long length;
+    private long lastModified;
+    private String fingerprint;
+    private String quickFingerprint;
+    private String streamId;
+    private String head;
+    private long offset;
+    private GcLogFormat format;
+    private GcEventParser parser;
+
+    public SourceState() {
+    }
+
+    public SourceState(String streamId, long offset) {
+        this.streamId = streamId;
+        this.offset = offset;
+    }
+
+    /**
+     * Name of the file, when it was last seen, null in the states of the previous versions.
+     */
+    public String getName() {
+        return name;
+    }
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Size of the file at the moment it was last processed.
+     */
+    public long getLength() {
+        return length;
+    }
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * SHA1 of the (uncompressed) file content at the moment it was last processed, or the
+     * {@link #getStreamId()} once the file, which was shipped incrementally, is rotated.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * {@link FileIdentity#fingerprint} of the file at the moment it was last processed.
+     */
+    public String getQuickFingerprint() {
+        return quickFingerprint;
+    }
+    public void setQuickFingerprint(String quickFingerprint) {
+        this.quickFingerprint = quickFingerprint;
+    }
+
+    /**
+     * Identifier of the current append-only stream of the file. Changes
+     * every time the file is truncated or recreated by the JVM.
+     */
+    public String getStreamId() {
+        return streamId;
+    }
+    public void setStreamId(String streamId) {
+        this.streamId = streamId;
+    }
+
+    /**
+     * {@link FileIdentity#head} of the stream, over up to its first {@link FileIdentity#BLOCK_SIZE}
+     * bytes, null if nothing was shipped yet.
+     */
+    public String getHead() {
+        return head;
+    }
+    public void setHead(String head) {
+        this.head = head;
+    }
+
+    /**
+     * Number of bytes of the stream which were already scheduled for upload.
+     */
+    public long getOffset() {
+        return offset;
+    }
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * Detected format of the log, null if it wasn't detected yet.
+     */
+    public GcLogFormat getFormat() {
+        return format;
+    }
+    public void setFormat(GcLogFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Parser of the events of the stream, with the collection, which lines were split between
+     * the segments. Not persisted, so only such a collection is lost on restart.
+     */
+    public GcEventParser getParser() {
+        return parser;
+    }
+    public void setParser(GcEventParser parser) {
+        this.parser = parser;
+    }
+}
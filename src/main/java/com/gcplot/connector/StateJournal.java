@@ -0,0 +1,158 @@
+package com.gcplot.connector;
+
+import com.google.common.base.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Persistent, append-only journal of {@link SourceState}s, keyed by {@code <jvmId>/<fileIdentity>}
+ * (see {@link FileIdentity}), or by {@code <jvmId>/<fileName>} for the files without identity.
+ *
+ * Every update is appended to a {@link RecordLog}, so a torn write after a crash is detected
+ * on load. On startup the journal is read through a memory-mapped buffer into the in-memory
+ * index, and it is compacted to a snapshot of live entries once the garbage grows too large.
+ */
+public class StateJournal implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(StateJournal.class);
+    private static final int MAGIC = 0x47435053; // GCPS
+    private static final int VERSION = 1;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    private final RecordLog log;
+    private final ConcurrentMap<String, SourceState> index = new ConcurrentHashMap<String, SourceState>();
+
+    public StateJournal(File file) throws IOException {
+        this.log = new RecordLog(file, MAGIC, VERSION);
+        log.replay(new RecordLog.Handler() {
+            @Override
+            public void onRecord(byte[] payload) throws IOException {
+                apply(payload);
+            }
+        });
+        LOG.info("State Journal: loaded {} entries from {}.", index.size(), file);
+        compact();
+    }
+
+    public SourceState get(String key) {
+        return index.get(key);
+    }
+
+    public SourceState getOrCreate(String key) {
+        SourceState state = index.get(key);
+        if (state == null) {
+            index.putIfAbsent(key, new SourceState());
+            state = index.get(key);
+        }
+        return state;
+    }
+
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * Persists the current values of the given state.
+     */
+    public void put(String key, SourceState state) throws IOException {
+        byte[] payload = putRecord(key, state);
+        index.put(key, state);
+        append(payload);
+    }
+
+    public void remove(String key) throws IOException {
+        if (index.remove(key) != null) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeByte(REMOVE);
+            dos.writeUTF(key);
+            append(bos.toByteArray());
+        }
+    }
+
+    /**
+     * Forces all appended records to the storage device.
+     */
+    public void sync() throws IOException {
+        log.sync();
+    }
+
+    /**
+     * Rewrites the journal to contain only the live entries.
+     */
+    public synchronized void compact() throws IOException {
+        List<byte[]> payloads = new ArrayList<byte[]>(index.size());
+        for (Map.Entry<String, SourceState> e : index.entrySet()) {
+            payloads.add(putRecord(e.getKey(), e.getValue()));
+        }
+        log.rewrite(payloads);
+        LOG.debug("State Journal: compacted {} to {} entries.", log.getFile(), payloads.size());
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private synchronized void append(byte[] payload) throws IOException {
+        log.append(payload);
+        if (log.records() > MIN_COMPACT_RECORDS && log.records() > index.size() * 4L) {
+            compact();
+        }
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = dis.readByte();
+        String key = dis.readUTF();
+        if (type == PUT) {
+            SourceState state = new SourceState();
+            state.setLength(dis.readLong());
+            state.setLastModified(dis.readLong());
+            state.setOffset(dis.readLong());
+            state.setStreamId(Strings.emptyToNull(dis.readUTF()));
+            state.setFingerprint(Strings.emptyToNull(dis.readUTF()));
+            if (dis.available() > 0) {
+                // absent in the records of the previous versions
+                String format = dis.readUTF();
+                state.setFormat(format.isEmpty() ? null : GcLogFormat.valueOf(format));
+            }
+            if (dis.available() > 0) {
+                state.setName(Strings.emptyToNull(dis.readUTF()));
+                state.setQuickFingerprint(Strings.emptyToNull(dis.readUTF()));
+            }
+            if (dis.available() > 0) {
+                state.setHead(Strings.emptyToNull(dis.readUTF()));
+            }
+            index.put(key, state);
+        } else if (type == REMOVE) {
+            index.remove(key);
+        }
+    }
+
+    private static byte[] putRecord(String key, SourceState state) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+        DataOutputStream dos = new DataOutputStream(bos);
+        synchronized (state) {
+            dos.writeByte(PUT);
+            dos.writeUTF(key);
+            dos.writeLong(state.getLength());
+            dos.writeLong(state.getLastModified());
+            dos.writeLong(state.getOffset());
+            dos.writeUTF(Strings.nullToEmpty(state.getStreamId()));
+            dos.writeUTF(Strings.nullToEmpty(state.getFingerprint()));
+            dos.writeUTF(state.getFormat() == null ? "" : state.getFormat().name());
+            dos.writeUTF(Strings.nullToEmpty(state.getName()));
+            dos.writeUTF(Strings.nullToEmpty(state.getQuickFingerprint()));
+            dos.writeUTF(Strings.nullToEmpty(state.getHead()));
+        }
+        return bos.toByteArray();
+    }
+
+}
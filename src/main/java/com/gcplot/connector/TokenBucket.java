@@ -0,0 +1,47 @@
+package com.gcplot.connector;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket, which limits a rate to {@code rate} tokens per second, with bursts of
+ * up to one second worth of tokens.
+ *
+ * Callers take the tokens right away and then wait until the bucket is out of debt, so
+ * concurrent callers are served in order and the overall rate stays within the limit.
+ */
+public class TokenBucket {
+    private final long rate;
+    private double tokens;
+    private long refilledAt;
+
+    public TokenBucket(long rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Rate must be positive, but was " + rate);
+        }
+        this.rate = rate;
+        this.tokens = rate;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Takes the given amount of tokens, waiting while there are not enough of them.
+     */
+    public void acquire(long amount) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - refilledAt) * rate / 1e9);
+            refilledAt = now;
+            tokens -= amount;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.gcplot.connector;
+
+import java.io.IOException;
+
+/**
+ * Failure of an upload, which tells the {@link UploadScheduler} how to retry it.
+ */
+public class UploadException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final boolean permanent;
+    private final long retryAfterMs;
+
+    /**
+     * @param permanent whether the upload would fail the same way if retried, e.g. for a rejected content
+     */
+    public UploadException(String message, Throwable cause, boolean permanent) {
+        super(message, cause);
+        this.permanent = permanent;
+        this.retryAfterMs = 0;
+    }
+
+    /**
+     * The upload wasn't even attempted, as its destination is known to be unavailable.
+     */
+    public UploadException(String message, long retryAfterMs) {
+        super(message);
+        this.permanent = false;
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    public boolean isPermanent() {
+        return permanent;
+    }
+
+    /**
+     * @return when the upload may be retried without counting it as an attempt, or 0 if it was attempted
+     */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.gcplot.connector;
+
+/**
+ * What is uploaded for the source logs: raw {@code .log.gz} copies, compact
+ * {@code .events.gz} streams written by {@link GcEventOutputStream}, or both.
+ */
+public enum UploadFormat {
+
+    RAW(true, false), EVENTS(false, true), BOTH(true, true);
+
+    private final boolean raw;
+    private final boolean events;
+
+    UploadFormat(boolean raw, boolean events) {
+        this.raw = raw;
+        this.events = events;
+    }
+
+    public boolean hasRaw() {
+        return raw;
+    }
+
+    public boolean hasEvents() {
+        return events;
+    }
+}
@@ -0,0 +1,261 @@
+package com.gcplot.connector;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent set of the spooled files, which were already uploaded, keyed by {@code <jvmId>/<fileName>}.
+ * As spooled files are named by the digest of their content, it tells whether the same content
+ * was uploaded before, so uploaded files can be deleted instead of being kept as zero-length tombstones.
+ * Only such content names are indexed: tail segments and batches are named after their stream and members,
+ * and never come again.
+ *
+ * Keys are kept as 64-bit hashes in an open-addressing table of primitive arrays, 12 bytes per slot, which
+ * never grows beyond {@link #MAX_CAPACITY} slots. Once it's full, the older half of the entries is forgotten,
+ * so at worst the same content is uploaded again under the same name. As the upload times are kept in seconds,
+ * the entries uploaded within the same second are forgotten in no particular order. Entries expire {@code ttlMs} after
+ * the upload. Every entry is appended to a {@link RecordLog}, which is compacted on startup and
+ * on {@link #expire()}, once the expired entries make up most of it.
+ */
+public class UploadIndex implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(UploadIndex.class);
+    private static final int MAGIC = 0x47435058; // GCPX
+    private static final int VERSION = 2;
+    private static final int MIN_COMPACT_RECORDS = 1024;
+    private static final int MIN_CAPACITY = 1024;
+    static final int MAX_CAPACITY = 1 << 21;
+    private static final Pattern CONTENT_NAME = Pattern.compile("[0-9a-f]{40}(\\.log\\.gz|\\.events\\.gz)");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RecordLog log;
+    private final long ttlMs;
+    private final int maxCapacity;
+    /**
+     * Hashes of the keys, 0 marks a free slot.
+     */
+    private long[] hashes;
+    /**
+     * Upload times in seconds since the epoch, as unsigned ints.
+     */
+    private int[] times;
+    private int size;
+
+    public UploadIndex(File file, long ttlMs) throws IOException {
+        this(file, ttlMs, MAX_CAPACITY);
+    }
+
+    UploadIndex(File file, long ttlMs, int maxCapacity) throws IOException {
+        this.log = new RecordLog(file, MAGIC, VERSION);
+        this.ttlMs = ttlMs;
+        this.maxCapacity = Math.max(MIN_CAPACITY, maxCapacity);
+        allocate(MIN_CAPACITY);
+        final long now = System.currentTimeMillis();
+        log.replay(new RecordLog.Handler() {
+            @Override
+            public void onRecord(byte[] payload) throws IOException {
+                ByteBuffer buf = ByteBuffer.wrap(payload);
+                long hash = buf.getLong();
+                long uploadedAt = buf.getLong();
+                if (now - uploadedAt <= UploadIndex.this.ttlMs) {
+                    put(hash, uploadedAt);
+                }
+            }
+        });
+        LOG.info("Upload Index: loaded {} entries from {}.", size, file);
+        compact();
+    }
+
+    /**
+     * @return whether the content under {@code name} can be spooled again, and so is worth indexing
+     */
+    public static boolean isIndexed(String name) {
+        return CONTENT_NAME.matcher(name).matches();
+    }
+
+    public synchronized boolean contains(String jvmId, String name) {
+        int slot = slot(hash(jvmId, name));
+        return hashes[slot] != 0 && System.currentTimeMillis() - millis(times[slot]) <= ttlMs;
+    }
+
+    /**
+     * Remembers the upload of {@code name}, unless it's not {@link #isIndexed indexed}.
+     */
+    public synchronized void add(String jvmId, String name) throws IOException {
+        if (!isIndexed(name)) {
+            return;
+        }
+        long hash = hash(jvmId, name);
+        long now = System.currentTimeMillis();
+        put(hash, now);
+        log.append(record(hash, now));
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Forgets the entries older than the TTL.
+     */
+    public synchronized void expire() throws IOException {
+        retain(System.currentTimeMillis() - ttlMs);
+        if (log.records() > MIN_COMPACT_RECORDS && log.records() > size * 4L) {
+            compact();
+        }
+    }
+
+    public void sync() throws IOException {
+        log.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private void put(long hash, long uploadedAt) {
+        if ((size + 1) * 4L > hashes.length * 3L) {
+            if (hashes.length < maxCapacity) {
+                rehash(hashes.length * 2);
+            } else {
+                evict();
+            }
+        }
+        int slot = slot(hash);
+        if (hashes[slot] == 0) {
+            hashes[slot] = hash;
+            size++;
+        }
+        times[slot] = seconds(uploadedAt);
+    }
+
+    /**
+     * Makes room in the full table by forgetting the older half of the entries by their upload time. The
+     * entries are counted rather than their time range, as the table may fill up within a second, e.g. by
+     * an import.
+     */
+    private void evict() {
+        int keep = size / 2;
+        // the times are unsigned, so their sign bits are flipped to sort them
+        int[] sorted = new int[size];
+        int n = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != 0) {
+                sorted[n++] = times[i] ^ Integer.MIN_VALUE;
+            }
+        }
+        Arrays.sort(sorted);
+        int median = sorted[size - keep];
+        // the entries of the median time, which fit after all the newer ones
+        int ties = keep;
+        for (int i = size - 1; i >= 0 && sorted[i] != median; i--) {
+            ties--;
+        }
+        int before = size;
+        long[] oldHashes = hashes;
+        int[] oldTimes = times;
+        allocate(hashes.length);
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0) {
+                int time = oldTimes[i] ^ Integer.MIN_VALUE;
+                if (time > median || (time == median && ties-- > 0)) {
+                    insert(oldHashes[i], oldTimes[i]);
+                }
+            }
+        }
+        LOG.warn("Upload Index: the index is full, forgot {} entries uploaded until {}.", before - size,
+                new Date(millis(median ^ Integer.MIN_VALUE)));
+    }
+
+    /**
+     * Keeps only the entries uploaded since {@code since}.
+     */
+    private void retain(long since) {
+        long[] oldHashes = hashes;
+        int[] oldTimes = times;
+        allocate(hashes.length);
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0 && millis(oldTimes[i]) >= since) {
+                insert(oldHashes[i], oldTimes[i]);
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldHashes = hashes;
+        int[] oldTimes = times;
+        allocate(capacity);
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0) {
+                insert(oldHashes[i], oldTimes[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        hashes = new long[capacity];
+        times = new int[capacity];
+        size = 0;
+    }
+
+    private void insert(long hash, int time) {
+        int slot = slot(hash);
+        hashes[slot] = hash;
+        times[slot] = time;
+        size++;
+    }
+
+    /**
+     * @return the slot of {@code hash}, or the free slot where it belongs
+     */
+    private int slot(long hash) {
+        int mask = hashes.length - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (hashes[slot] != 0 && hashes[slot] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private synchronized void compact() throws IOException {
+        List<byte[]> payloads = new ArrayList<byte[]>(size);
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != 0) {
+                payloads.add(record(hashes[i], millis(times[i])));
+            }
+        }
+        log.rewrite(payloads);
+        LOG.debug("Upload Index: compacted {} to {} entries.", log.getFile(), payloads.size());
+    }
+
+    /**
+     * @return the first 64 bits of the SHA1 of {@code <jvmId>/<name>}, never 0
+     */
+    private static long hash(String jvmId, String name) {
+        long hash = ByteBuffer.wrap(DigestUtils.getSha1Digest().digest((jvmId + "/" + name).getBytes(UTF_8))).getLong();
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static int seconds(long millis) {
+        return (int) (millis / 1000);
+    }
+
+    private static long millis(int seconds) {
+        return (seconds & 0xFFFFFFFFL) * 1000;
+    }
+
+    private static byte[] record(long hash, long uploadedAt) {
+        return ByteBuffer.allocate(16).putLong(hash).putLong(uploadedAt).array();
+    }
+
+}
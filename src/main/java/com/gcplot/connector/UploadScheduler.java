@@ -0,0 +1,457 @@
+package com.gcplot.connector;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Schedules spooled files for upload.
+ *
+ * Files wait in a bounded in-memory queue, so {@link #submit(String, File, boolean)} blocks the producer
+ * while the queue is full. The queue has two lanes: live files, like the fresh segments of the active
+ * logs, always go ahead of the backfill, and one worker is kept free of backfill, so live files don't
+ * wait for a long catch-up upload to finish. The state of every known file is kept in a concurrent map, and
+ * every transition is written to a {@link RecordLog}, so files which were queued or being
+ * uploaded at the moment of a crash are scheduled again on the next start.
+ *
+ * Failed uploads are scheduled again after a jittered exponential backoff, without holding a worker
+ * meanwhile. Their attempts are logged as well, and once a file fails {@code maxAttempts} times, or its
+ * upload fails permanently, it's moved to the dead-letter dir, where it's kept for manual recovery.
+ */
+public class UploadScheduler implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(UploadScheduler.class);
+    private static final int MAGIC = 0x47435055; // GCPU
+    private static final int VERSION = 1;
+    private static final byte ENQUEUED = 1;
+    private static final byte COMPLETED = 2;
+    private static final byte FAILED = 3;
+    private static final long BASE_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    private final RecordLog wal;
+    private final File deadLetterDir;
+    private final int maxAttempts;
+    private final Lanes queue;
+    private final ConcurrentMap<String, Task> tasks = new ConcurrentHashMap<String, Task>();
+    private final ExecutorService workers;
+    private final int workersCount;
+    private final Handler handler;
+    private final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicInteger deadLettered = new AtomicInteger();
+
+    public UploadScheduler(File walFile, File deadLetterDir, int capacity, int maxAttempts,
+                           ExecutorService workers, int workersCount, Handler handler) {
+        this.wal = new RecordLog(walFile, MAGIC, VERSION);
+        this.deadLetterDir = deadLetterDir;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.queue = new Lanes(capacity, Math.max(1, workersCount - 1));
+        this.workers = workers;
+        this.workersCount = workersCount;
+        this.handler = handler;
+    }
+
+    /**
+     * Starts the workers and schedules again the files, which weren't uploaded before the last stop.
+     */
+    public void start() throws IOException, InterruptedException {
+        final Map<String, Task> unfinished = new LinkedHashMap<String, Task>();
+        wal.replay(new RecordLog.Handler() {
+            @Override
+            public void onRecord(byte[] payload) throws IOException {
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = dis.readByte();
+                String jvmId = dis.readUTF();
+                String path = dis.readUTF();
+                if (type == ENQUEUED) {
+                    if (!unfinished.containsKey(key(jvmId, path))) {
+                        unfinished.put(key(jvmId, path), new Task(jvmId, new File(path), false));
+                    }
+                } else if (type == COMPLETED) {
+                    unfinished.remove(key(jvmId, path));
+                } else if (type == FAILED) {
+                    Task task = unfinished.get(key(jvmId, path));
+                    if (task != null) {
+                        task.attempts = dis.readInt();
+                    }
+                }
+            }
+        });
+        wal.rewrite(snapshot(unfinished.values()));
+        for (int i = 0; i < workersCount; i++) {
+            workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+        LOG.info("Upload Scheduler: resuming {} unfinished uploads.", unfinished.size());
+        for (Task task : unfinished.values()) {
+            submit(task);
+        }
+    }
+
+    /**
+     * Schedules the file for upload, unless it's already scheduled. Blocks while the queue is full.
+     *
+     * @param live whether the file has fresh data, which goes ahead of the backfill
+     * @return whether the file was scheduled by this call
+     */
+    public boolean submit(String jvmId, File file, boolean live) throws IOException, InterruptedException {
+        return submit(new Task(jvmId, file, live));
+    }
+
+    private boolean submit(Task task) throws IOException, InterruptedException {
+        if (!task.file.exists() || task.file.length() == 0) {
+            return false;
+        }
+        if (tasks.putIfAbsent(key(task.jvmId, task.file.getPath()), task) != null) {
+            return false;
+        }
+        wal.append(record(ENQUEUED, task));
+        if (!queue.offer(task)) {
+            LOG.debug("Upload Scheduler: queue is full, waiting to schedule {}.", task.file.getName());
+            queue.put(task);
+        }
+        return true;
+    }
+
+    /**
+     * @return the state of the file, or null if it's not scheduled
+     */
+    public UploadState state(String jvmId, File file) {
+        Task task = tasks.get(key(jvmId, file.getPath()));
+        return task == null ? null : task.state;
+    }
+
+    public int queueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of files, which are queued or being uploaded
+     */
+    public int pending() {
+        return tasks.size();
+    }
+
+    /**
+     * @return per JVM, the modification time of the oldest file which is not uploaded yet
+     */
+    public Map<String, Long> oldestPending() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Task task : tasks.values()) {
+            Long oldest = result.get(task.jvmId);
+            if (oldest == null || task.since < oldest) {
+                result.put(task.jvmId, task.since);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of files moved to the dead-letter dir since the start
+     */
+    public int deadLettered() {
+        return deadLettered.get();
+    }
+
+    public void sync() throws IOException {
+        wal.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        retryTimer.shutdownNow();
+        wal.close();
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            task.state = UploadState.UPLOADING;
+            try {
+                handler.upload(task.jvmId, task.file);
+                complete(task);
+            } catch (InterruptedException e) {
+                release(task);
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                retry(task, t);
+            } finally {
+                queue.done(task);
+            }
+        }
+    }
+
+    /**
+     * Schedules the failed task again after a backoff. Uploads, which were rejected without an attempt
+     * as their destination is unavailable, wait as long as they were told to, and their attempts aren't
+     * counted.
+     */
+    private void retry(final Task task, Throwable t) {
+        if (!task.file.exists()) {
+            LOG.warn("Upload Scheduler: {} is gone, dropping its upload.", task.file);
+            complete(task);
+            return;
+        }
+        UploadException failure = t instanceof UploadException ? (UploadException) t : null;
+        long delay;
+        if (failure != null && failure.getRetryAfterMs() > 0) {
+            delay = failure.getRetryAfterMs() + ThreadLocalRandom.current().nextLong(BASE_BACKOFF_MS + 1);
+            LOG.debug("Upload Scheduler: {} ({}), retrying {} in {} ms.", t.getMessage(), task.attempts,
+                    task.file.getName(), delay);
+        } else {
+            task.attempts++;
+            if ((failure != null && failure.isPermanent()) || task.attempts >= maxAttempts) {
+                LOG.error(t.getMessage(), t);
+                deadLetter(task);
+                return;
+            }
+            // full jitter, so the files failed together aren't retried together
+            delay = ThreadLocalRandom.current().nextLong(
+                    Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(task.attempts, 16)) + 1);
+            LOG.warn("Upload Scheduler: upload of {} failed {} of {} times ({}), retrying in {} ms.",
+                    task.file.getName(), task.attempts, maxAttempts, t.getMessage(), delay);
+            Metrics.UPLOAD_RETRIES.inc();
+            try {
+                synchronized (wal) {
+                    wal.append(record(FAILED, task));
+                }
+            } catch (Throwable e) {
+                LOG.error(e.getMessage(), e);
+            }
+        }
+        task.state = UploadState.FAILED;
+        retryTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                task.state = UploadState.QUEUED;
+                queue.requeue(task);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Moves the file of the task to {@code <deadLetterDir>/<jvmId>/}, and forgets the task.
+     */
+    private void deadLetter(Task task) {
+        File target = new File(new File(deadLetterDir, task.jvmId), task.file.getName());
+        try {
+            if (target.exists()) {
+                // named by the content, so it's the same file
+                FileUtils.forceDelete(task.file);
+            } else {
+                FileUtils.moveFile(task.file, target);
+            }
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+            release(task);
+            return;
+        }
+        LOG.error("Upload Scheduler: gave up on {} after {} attempts, moved it to {}.",
+                task.file.getName(), task.attempts, target);
+        Metrics.DEAD_LETTERS.inc();
+        deadLettered.incrementAndGet();
+        complete(task);
+    }
+
+    /**
+     * Forgets the failed task, so it can be submitted again. It stays unfinished
+     * in the log, and will be resumed on the next start.
+     */
+    private void release(Task task) {
+        task.state = UploadState.FAILED;
+        tasks.remove(key(task.jvmId, task.file.getPath()));
+    }
+
+    private void complete(Task task) {
+        task.state = UploadState.COMPLETED;
+        tasks.remove(key(task.jvmId, task.file.getPath()));
+        try {
+            synchronized (wal) {
+                wal.append(record(COMPLETED, task));
+                if (wal.records() > MIN_COMPACT_RECORDS && wal.records() > tasks.size() * 4L) {
+                    compact();
+                }
+            }
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+        }
+    }
+
+    private void compact() throws IOException {
+        wal.rewrite(snapshot(tasks.values()));
+    }
+
+    private static List<byte[]> snapshot(Collection<Task> tasks) throws IOException {
+        List<byte[]> payloads = new ArrayList<byte[]>(tasks.size());
+        for (Task task : tasks) {
+            payloads.add(record(ENQUEUED, task));
+            if (task.attempts > 0) {
+                payloads.add(record(FAILED, task));
+            }
+        }
+        return payloads;
+    }
+
+    private static String key(String jvmId, String path) {
+        return jvmId + "/" + path;
+    }
+
+    private static byte[] record(byte type, Task task) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(type);
+        dos.writeUTF(task.jvmId);
+        dos.writeUTF(task.file.getPath());
+        if (type == FAILED) {
+            dos.writeInt(task.attempts);
+        }
+        return bos.toByteArray();
+    }
+
+    public enum UploadState {
+        QUEUED, UPLOADING, COMPLETED, FAILED
+    }
+
+    public interface Handler {
+
+        void upload(String jvmId, File file) throws Exception;
+
+    }
+
+    private static class Task {
+        private final String jvmId;
+        private final File file;
+        private final long since;
+        private final boolean live;
+        private volatile UploadState state = UploadState.QUEUED;
+        private volatile int attempts;
+
+        private Task(String jvmId, File file, boolean live) {
+            this.jvmId = jvmId;
+            this.file = file;
+            this.since = file.lastModified();
+            this.live = live;
+        }
+    }
+
+    /**
+     * Bounded queue of the live and backfill lanes, FIFO within each lane. At most
+     * {@code maxBackfill} backfill tasks are taken at a time.
+     */
+    private static class Lanes {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final Deque<Task> live = new ArrayDeque<Task>();
+        private final Deque<Task> backfill = new ArrayDeque<Task>();
+        private final int capacity;
+        private final int maxBackfill;
+        private int backfillActive;
+
+        private Lanes(int capacity, int maxBackfill) {
+            this.capacity = capacity;
+            this.maxBackfill = maxBackfill;
+        }
+
+        boolean offer(Task task) {
+            lock.lock();
+            try {
+                if (live.size() + backfill.size() >= capacity) {
+                    return false;
+                }
+                add(task);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(Task task) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (live.size() + backfill.size() >= capacity) {
+                    notFull.await();
+                }
+                add(task);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Task take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (live.isEmpty() && (backfill.isEmpty() || backfillActive >= maxBackfill)) {
+                    notEmpty.await();
+                }
+                Task task = live.isEmpty() ? backfill.poll() : live.poll();
+                if (!task.live) {
+                    backfillActive++;
+                }
+                notFull.signal();
+                return task;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Marks the task taken by {@link #take()} as finished.
+         */
+        void done(Task task) {
+            if (!task.live) {
+                lock.lock();
+                try {
+                    backfillActive--;
+                    notEmpty.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Adds the task taken before back, even if the queue is full, as it was counted there already.
+         */
+        void requeue(Task task) {
+            lock.lock();
+            try {
+                add(task);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return live.size() + backfill.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void add(Task task) {
+            (task.live ? live : backfill).add(task);
+            notEmpty.signal();
+        }
+    }
+
+}
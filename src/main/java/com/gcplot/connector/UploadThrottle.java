@@ -0,0 +1,48 @@
+package com.gcplot.connector;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Upload bandwidth limits: a global one and one per JVM, each applied by its own
+ * {@link TokenBucket}. A zero rate means no limit.
+ */
+public class UploadThrottle {
+    private final TokenBucket global;
+    private final long jvmRate;
+    private final ConcurrentMap<String, TokenBucket> jvms = new ConcurrentHashMap<String, TokenBucket>();
+
+    public UploadThrottle(long globalRate, long jvmRate) {
+        this.global = globalRate > 0 ? new TokenBucket(globalRate) : null;
+        this.jvmRate = jvmRate;
+    }
+
+    public boolean isEnabled() {
+        return global != null || jvmRate > 0;
+    }
+
+    /**
+     * Waits until the given number of bytes of the JVM can be sent.
+     */
+    public void acquire(String jvmId, long bytes) throws InterruptedException {
+        if (jvmRate > 0) {
+            TokenBucket bucket = jvms.get(jvmId);
+            if (bucket == null) {
+                jvms.putIfAbsent(jvmId, new TokenBucket(jvmRate));
+                bucket = jvms.get(jvmId);
+            }
+            bucket.acquire(bytes);
+        }
+        if (global != null) {
+            global.acquire(bytes);
+        }
+    }
+
+    /**
+     * Forgets the limit of the retired JVM.
+     */
+    public void release(String jvmId) {
+        jvms.remove(jvmId);
+    }
+
+}
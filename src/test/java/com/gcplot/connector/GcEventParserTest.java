@@ -0,0 +1,61 @@
+package com.gcplot.connector;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class GcEventParserTest {
+
+    @Test
+    public void testUnifiedNanosDecorations() {
+        GcEvent e = parse("[1490695200123456789ns][5123456789ns][info][gc] GC(7) Pause Young (Normal) "
+                + "(G1 Evacuation Pause) 24M->3M(256M) 4.123ms");
+        assertNotNull(e);
+        assertEquals(1490695200123L, e.getTimeMillis());
+        assertEquals(5123, e.getUptimeMillis());
+        assertEquals(7, e.getGcId());
+        assertEquals(GcEvent.Kind.PAUSE, e.getKind());
+        assertEquals(4123, e.getDurationMicros());
+        assertEquals(24 * 1024, e.getHeapBefore());
+    }
+
+    @Test
+    public void testUnifiedMillisDecorations() {
+        GcEvent e = parse("[1490695200123ms][5123ms][info][gc] GC(7) Pause Full (System.gc()) 24M->3M(256M) 40.5ms");
+        assertNotNull(e);
+        assertEquals(1490695200123L, e.getTimeMillis());
+        assertEquals(5123, e.getUptimeMillis());
+        assertEquals(GcEvent.Kind.FULL_PAUSE, e.getKind());
+        assertEquals("System.gc()", e.getCause());
+    }
+
+    @Test
+    public void testUnifiedUptimeSeconds() {
+        GcEvent e = parse("[2017-03-28T10:00:00.123+0000][5.123s][info][gc] GC(0) Pause Young (Normal) "
+                + "(G1 Evacuation Pause) 24M->3M(256M) 4.123ms");
+        assertNotNull(e);
+        assertEquals(1490695200123L, e.getTimeMillis());
+        assertEquals(5123, e.getUptimeMillis());
+    }
+
+    @Test
+    public void testLegacy() {
+        GcEvent e = parse("2017-03-28T10:00:00.123+0000: 0.123: [GC (Allocation Failure) [PSYoungGen: "
+                + "65024K->10736K(75776K)] 65024K->10744K(249344K), 0.0137 secs]");
+        assertNotNull(e);
+        assertEquals(1490695200123L, e.getTimeMillis());
+        assertEquals(123, e.getUptimeMillis());
+        assertEquals("Allocation Failure", e.getCause());
+        assertEquals(1, e.getGenerations());
+        assertEquals("PSYoungGen", e.getGenerationName(0));
+        assertEquals(13700, e.getDurationMicros());
+    }
+
+    private static GcEvent parse(String line) {
+        byte[] b = line.getBytes(StandardCharsets.UTF_8);
+        GcEvent e = new GcEvent();
+        return new GcEventParser().parse(b, 0, b.length, e) ? e : null;
+    }
+}
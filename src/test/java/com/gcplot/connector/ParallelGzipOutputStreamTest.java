@@ -0,0 +1,143 @@
+package com.gcplot.connector;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+public class ParallelGzipOutputStreamTest {
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final BufferPool pool = new BufferPool(64L * 1024 * 1024);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        roundTrip(0, 0);
+    }
+
+    @Test
+    public void testSmallerThanBlock() throws Exception {
+        roundTrip(1000, 1000);
+    }
+
+    @Test
+    public void testExactlyOneBlock() throws Exception {
+        roundTrip(BLOCK_SIZE, BLOCK_SIZE);
+    }
+
+    @Test
+    public void testOneByteOverBlock() throws Exception {
+        roundTrip(BLOCK_SIZE + 1, BLOCK_SIZE, 1);
+    }
+
+    @Test
+    public void testMoreBlocksThanInFlight() throws Exception {
+        roundTrip(5 * BLOCK_SIZE + BLOCK_SIZE / 2, BLOCK_SIZE, BLOCK_SIZE, BLOCK_SIZE, BLOCK_SIZE, BLOCK_SIZE,
+                BLOCK_SIZE / 2);
+    }
+
+    /**
+     * Compresses {@code size} bytes and checks the sizes of the members, their trailers, and the whole
+     * stream read by {@link GZIPInputStream}.
+     */
+    private void roundTrip(int size, int... memberSizes) throws IOException, DataFormatException {
+        byte[] data = content(size);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(bos, executor, pool, 6, BLOCK_SIZE, 2);
+        // writes of an odd size cross the block boundaries
+        for (int off = 0; off < size; off += 7777) {
+            out.write(data, off, Math.min(7777, size - off));
+        }
+        out.close();
+        byte[] compressed = bos.toByteArray();
+
+        List<byte[]> members = members(compressed);
+        assertEquals(memberSizes.length, members.size());
+        int off = 0;
+        for (int i = 0; i < members.size(); i++) {
+            byte[] member = members.get(i);
+            assertEquals("Size of member " + i, memberSizes[i], member.length);
+            for (int j = 0; j < member.length; j++) {
+                assertEquals(data[off + j], member[j]);
+            }
+            off += member.length;
+        }
+
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        try {
+            assertArrayEquals(data, IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Inflates the gzip members one by one, checking the CRC32 and ISIZE of their trailers.
+     */
+    private static List<byte[]> members(byte[] gzip) throws DataFormatException {
+        List<byte[]> members = new ArrayList<byte[]>();
+        int pos = 0;
+        while (pos < gzip.length) {
+            assertEquals(0x1f, gzip[pos] & 0xff);
+            assertEquals(0x8b, gzip[pos + 1] & 0xff);
+            assertEquals(0, gzip[pos + 3]);
+            Inflater inflater = new Inflater(true);
+            inflater.setInput(gzip, pos + 10, gzip.length - pos - 10);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buf = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                assertFalse("Truncated member", n == 0 && inflater.needsInput());
+                content.write(buf, 0, n);
+            }
+            int trailer = gzip.length - inflater.getRemaining();
+            inflater.end();
+            byte[] member = content.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(member);
+            assertEquals((int) crc.getValue(), readIntLE(gzip, trailer));
+            assertEquals(member.length, readIntLE(gzip, trailer + 4));
+            members.add(member);
+            pos = trailer + 8;
+        }
+        assertEquals(gzip.length, pos);
+        return members;
+    }
+
+    private static int readIntLE(byte[] b, int pos) {
+        return (b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8 | (b[pos + 2] & 0xff) << 16 | (b[pos + 3] & 0xff) << 24;
+    }
+
+    /**
+     * @return log-like content, which is compressible but differs from block to block
+     */
+    private static byte[] content(int size) {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = i % 80 == 79 ? (byte) '\n' : (byte) ('0' + random.nextInt(16));
+        }
+        return data;
+    }
+}
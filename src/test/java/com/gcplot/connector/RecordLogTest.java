@@ -0,0 +1,176 @@
+package com.gcplot.connector;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordLogTest {
+    private static final int MAGIC = 0x47435054; // GCPT
+    private static final int HEADER_SIZE = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplayInAppendOrder() throws Exception {
+        File file = new File(folder.getRoot(), "test.log");
+        append(file, "a", "b", "c");
+        RecordLog log = new RecordLog(file, MAGIC, 1);
+        assertEquals(Arrays.asList("a", "b", "c"), replay(log));
+        assertEquals(3, log.records());
+        log.append(bytes("d"));
+        log.close();
+        assertEquals(Arrays.asList("a", "b", "c", "d"), replay(file));
+    }
+
+    @Test
+    public void testTruncatedLastRecord() throws Exception {
+        File file = new File(folder.getRoot(), "test.log");
+        append(file, "first", "second", "third");
+        long complete = file.length();
+        truncate(file, complete - 2);
+        RecordLog log = new RecordLog(file, MAGIC, 1);
+        assertEquals(Arrays.asList("first", "second"), replay(log));
+        assertEquals(complete - record("third"), file.length());
+        // the next record goes right after the last valid one
+        log.append(bytes("fourth"));
+        log.close();
+        assertEquals(Arrays.asList("first", "second", "fourth"), replay(file));
+    }
+
+    @Test
+    public void testTruncatedHeaderOfLastRecord() throws Exception {
+        File file = new File(folder.getRoot(), "test.log");
+        append(file, "first", "second");
+        truncate(file, file.length() - record("second") + 5);
+        assertEquals(Arrays.asList("first"), replay(file));
+        assertEquals(HEADER_SIZE + record("first"), file.length());
+    }
+
+    @Test
+    public void testCorruptedCrcInTheMiddle() throws Exception {
+        File file = new File(folder.getRoot(), "test.log");
+        append(file, "first", "second", "third");
+        // the last byte of the payload of the second record
+        long position = HEADER_SIZE + record("first") + record("second") - 1;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+        // nothing after the corrupted record can be trusted
+        assertEquals(Arrays.asList("first"), replay(file));
+        assertEquals(HEADER_SIZE + record("first"), file.length());
+        assertEquals(Arrays.asList("first"), replay(file));
+    }
+
+    @Test
+    public void testUnknownFormatIsIgnored() throws Exception {
+        File file = new File(folder.getRoot(), "test.log");
+        append(file, "first");
+        long length = file.length();
+        assertTrue(replay(new RecordLog(file, MAGIC, 2)).isEmpty());
+        assertTrue(replay(new RecordLog(file, MAGIC + 1, 1)).isEmpty());
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void testReplayAfterCompaction() throws Exception {
+        File file = new File(folder.getRoot(), "test.log");
+        RecordLog log = new RecordLog(file, MAGIC, 1);
+        replay(log);
+        for (int i = 0; i < 10; i++) {
+            log.append(bytes("old" + i));
+        }
+        log.rewrite(Arrays.asList(bytes("a"), bytes("b")));
+        assertEquals(2, log.records());
+        log.append(bytes("c"));
+        assertEquals(3, log.records());
+        log.close();
+        assertFalse(new File(folder.getRoot(), "test.log.compact").exists());
+        RecordLog reopened = new RecordLog(file, MAGIC, 1);
+        assertEquals(Arrays.asList("a", "b", "c"), replay(reopened));
+        assertEquals(3, reopened.records());
+        reopened.rewrite(new ArrayList<byte[]>());
+        reopened.close();
+        assertTrue(replay(file).isEmpty());
+        assertEquals(HEADER_SIZE, file.length());
+    }
+
+    @Test
+    public void testCrashBetweenCompactionAndRename() throws Exception {
+        File file = new File(folder.getRoot(), "test.log");
+        append(file, "a", "b", "c");
+        // the snapshot was being written when the process died, so the log wasn't replaced
+        File temp = new File(folder.getRoot(), "test.log.compact");
+        FileUtils.copyFile(file, temp);
+        truncate(temp, HEADER_SIZE + record("a") + 3);
+        RecordLog log = new RecordLog(file, MAGIC, 1);
+        assertEquals(Arrays.asList("a", "b", "c"), replay(log));
+        // the leftover is overwritten by the next compaction
+        log.rewrite(Arrays.asList(bytes("b")));
+        log.append(bytes("d"));
+        log.close();
+        assertFalse(temp.exists());
+        assertEquals(Arrays.asList("b", "d"), replay(file));
+    }
+
+    private static void append(File file, String... payloads) throws IOException {
+        RecordLog log = new RecordLog(file, MAGIC, 1);
+        replay(log);
+        for (String payload : payloads) {
+            log.append(bytes(payload));
+        }
+        log.close();
+    }
+
+    private static List<String> replay(File file) throws IOException {
+        return replay(new RecordLog(file, MAGIC, 1));
+    }
+
+    private static List<String> replay(RecordLog log) throws IOException {
+        final List<String> result = new ArrayList<String>();
+        log.replay(new RecordLog.Handler() {
+            @Override
+            public void onRecord(byte[] payload) {
+                result.add(new String(payload, StandardCharsets.UTF_8));
+            }
+        });
+        return result;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return size of the record of the payload, with its length and CRC
+     */
+    private static long record(String payload) {
+        return 8 + bytes(payload).length;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,111 @@
+package com.gcplot.connector;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class S3ResourceManagerTest {
+    private static final int MB = 1024 * 1024;
+    private static final String BUCKET = "bucket";
+    private static final String JVM_ID = "jvm";
+
+    private File dir;
+    private S3StandIn s3;
+    private ExecutorService partExecutor;
+    private S3ResourceManager rm;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("gcpc-s3").toFile();
+        s3 = new S3StandIn(true);
+        partExecutor = Executors.newFixedThreadPool(4);
+        rm = new S3ResourceManager(s3.connector(BUCKET), partExecutor, 4, new UploadThrottle(0, 0), "", "account", "analyze");
+    }
+
+    @After
+    public void tearDown() {
+        rm.retire();
+        partExecutor.shutdownNow();
+        s3.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testPartSize() {
+        assertEquals(5 * MB, S3ResourceManager.partSize(0));
+        assertEquals(5 * MB, S3ResourceManager.partSize(5 * MB));
+        assertEquals(5 * MB, S3ResourceManager.partSize(16L * 5 * MB));
+        assertEquals(6 * MB, S3ResourceManager.partSize(16L * 6 * MB));
+        assertEquals(64 * MB, S3ResourceManager.partSize(16L * 64 * MB));
+        assertEquals(64 * MB, S3ResourceManager.partSize(16L * 64 * MB * 100));
+        // never more than 10000 parts
+        assertEquals(64 * MB + 1, S3ResourceManager.partSize(10000L * 64 * MB + 1));
+        assertEquals(100 * MB, S3ResourceManager.partSize(10000L * 100 * MB));
+    }
+
+    @Test
+    public void testPutOfSinglePart() throws Exception {
+        byte[] content = upload("single.log.gz", 5 * MB);
+        assertArrayEquals(content, s3.getObjects().get(key("single.log.gz")));
+        assertNull(s3.getParts(key("single.log.gz")));
+    }
+
+    @Test
+    public void testPartsAreNumberedInOrder() throws Exception {
+        byte[] content = upload("parts.log.gz", 12 * MB + 123);
+        assertArrayEquals(content, s3.getObjects().get(key("parts.log.gz")));
+        SortedMap<Integer, Integer> parts = s3.getParts(key("parts.log.gz"));
+        assertEquals(Arrays.asList(1, 2, 3), Arrays.asList(parts.keySet().toArray()));
+        assertEquals(Arrays.asList(5 * MB, 5 * MB, 2 * MB + 123), Arrays.asList(parts.values().toArray()));
+    }
+
+    @Test
+    public void testLastPartOfOneByte() throws Exception {
+        byte[] content = upload("edge.log.gz", 5 * MB + 1);
+        assertArrayEquals(content, s3.getObjects().get(key("edge.log.gz")));
+        assertEquals(Arrays.asList(5 * MB, 1), Arrays.asList(s3.getParts(key("edge.log.gz")).values().toArray()));
+    }
+
+    @Test
+    public void testAbortAfterFailedPart() throws Exception {
+        rm.retire();
+        // one part at a time, so the failure is seen before the third part is sent
+        rm = new S3ResourceManager(s3.connector(BUCKET), partExecutor, 1, new UploadThrottle(0, 0), "", "account", "analyze");
+        s3.failPart(2);
+        try {
+            upload("failed.log.gz", 12 * MB);
+            fail("The upload should fail.");
+        } catch (UploadException e) {
+            assertFalse(e.isPermanent());
+        }
+        assertNull(s3.getObjects().get(key("failed.log.gz")));
+        assertEquals(0, s3.getPendingUploads());
+        SortedMap<Integer, Integer> stored = s3.getAbortedParts(key("failed.log.gz"));
+        assertNotNull("The upload should be aborted.", stored);
+        assertEquals(Arrays.asList(1), Arrays.asList(stored.keySet().toArray()));
+    }
+
+    private byte[] upload(String name, int size) throws Exception {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File f = new File(dir, name);
+        FileUtils.writeByteArrayToFile(f, content);
+        rm.upload(f, JVM_ID);
+        return content;
+    }
+
+    private static String key(String name) {
+        return BUCKET + "/" + Utils.toBase64("account") + "/analyze/" + JVM_ID + "/" + name;
+    }
+}
@@ -0,0 +1,273 @@
+package com.gcplot.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-process S3-compatible server, which supports just enough of the API
+ * for {@link S3ResourceManager}: PutObject and the multipart upload calls, with
+ * path-style addressing and aws-chunked payloads.
+ *
+ * Object contents are kept in memory if {@code retain} is set, otherwise only counted. The sizes
+ * of the parts are kept either way, and a part can be made to {@link #failPart(int) fail}.
+ */
+public class S3StandIn implements Closeable {
+    private static final String NS = "http://s3.amazonaws.com/doc/2006-03-01/";
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final boolean retain;
+    private final ConcurrentMap<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentMap<String, Long> arrivals = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<String, SortedMap<Integer, byte[]>>();
+    private final ConcurrentMap<String, SortedMap<Integer, Integer>> partSizes = new ConcurrentHashMap<String, SortedMap<Integer, Integer>>();
+    private final ConcurrentMap<String, SortedMap<Integer, Integer>> completedParts = new ConcurrentHashMap<String, SortedMap<Integer, Integer>>();
+    private final ConcurrentMap<String, SortedMap<Integer, Integer>> abortedParts = new ConcurrentHashMap<String, SortedMap<Integer, Integer>>();
+    private volatile int failingPart;
+    private final AtomicLong uploadIds = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong overwrites = new AtomicLong();
+
+    public S3StandIn(boolean retain) throws IOException {
+        this.retain = retain;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.setExecutor(executor);
+        this.server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    S3StandIn.this.handle(exchange);
+                } catch (Throwable t) {
+                    respond(exchange, 500, null, "<Error><Code>InternalError</Code><Message>" + t + "</Message></Error>");
+                }
+            }
+        });
+        this.server.start();
+    }
+
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return connector, which uploads to this server
+     */
+    public S3Connector connector(String bucket) {
+        S3Connector connector = new S3Connector();
+        connector.setBucket(bucket);
+        connector.setRegion("us-east-1");
+        connector.setAccessKey("access");
+        connector.setSecretKey("secret");
+        connector.setEndpoint(getEndpoint());
+        connector.init();
+        return connector;
+    }
+
+    public Map<String, byte[]> getObjects() {
+        return objects;
+    }
+
+    /**
+     * @return time in millis, when each object was stored for the first time
+     */
+    public Map<String, Long> getArrivals() {
+        return arrivals;
+    }
+
+    /**
+     * @return number of times an already stored object was uploaded again
+     */
+    public long getOverwrites() {
+        return overwrites.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return sizes of the parts of the completed multipart upload by their numbers, or null if the
+     * object was put in one piece
+     */
+    public SortedMap<Integer, Integer> getParts(String key) {
+        return completedParts.get(key);
+    }
+
+    /**
+     * @return sizes of the parts, which were stored before the multipart upload was aborted, by their numbers,
+     * or null if no upload of the object was aborted
+     */
+    public SortedMap<Integer, Integer> getAbortedParts(String key) {
+        return abortedParts.get(key);
+    }
+
+    /**
+     * @return number of multipart uploads, which are neither completed nor aborted
+     */
+    public int getPendingUploads() {
+        return uploads.size();
+    }
+
+    /**
+     * Makes the uploads of the parts with the number fail with InternalError, 0 for none.
+     */
+    public void failPart(int partNumber) {
+        failingPart = partNumber;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws Exception {
+        requests.incrementAndGet();
+        String method = exchange.getRequestMethod();
+        String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), "UTF-8");
+        Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+        String key = path.substring(1);
+        if (method.equals("POST") && query.containsKey("uploads")) {
+            String uploadId = String.valueOf(uploadIds.incrementAndGet());
+            uploads.put(uploadId, new TreeMap<Integer, byte[]>());
+            partSizes.put(uploadId, new TreeMap<Integer, Integer>());
+            String bucket = key.substring(0, key.indexOf('/'));
+            respond(exchange, 200, null, "<InitiateMultipartUploadResult xmlns=\"" + NS + "\"><Bucket>" + bucket
+                    + "</Bucket><Key>" + key.substring(bucket.length() + 1) + "</Key><UploadId>" + uploadId
+                    + "</UploadId></InitiateMultipartUploadResult>");
+        } else if (method.equals("PUT") && query.containsKey("uploadId")) {
+            byte[] body = body(exchange);
+            int partNumber = Integer.parseInt(query.get("partNumber"));
+            if (partNumber == failingPart) {
+                respond(exchange, 500, null, "<Error><Code>InternalError</Code><Message>Part " + partNumber
+                        + " failed.</Message></Error>");
+                return;
+            }
+            SortedMap<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+            SortedMap<Integer, Integer> sizes = partSizes.get(query.get("uploadId"));
+            synchronized (parts) {
+                parts.put(partNumber, retain ? body : new byte[0]);
+                sizes.put(partNumber, body.length);
+            }
+            respond(exchange, 200, md5(body), null);
+        } else if (method.equals("POST") && query.containsKey("uploadId")) {
+            body(exchange);
+            SortedMap<Integer, byte[]> parts = uploads.remove(query.get("uploadId"));
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            synchronized (parts) {
+                for (byte[] part : parts.values()) {
+                    content.write(part);
+                }
+            }
+            store(key, content.toByteArray());
+            completedParts.put(key, partSizes.remove(query.get("uploadId")));
+            String bucket = key.substring(0, key.indexOf('/'));
+            respond(exchange, 200, null, "<CompleteMultipartUploadResult xmlns=\"" + NS + "\"><Location>" + getEndpoint()
+                    + path + "</Location><Bucket>" + bucket + "</Bucket><Key>" + key.substring(bucket.length() + 1)
+                    + "</Key><ETag>\"" + md5(content.toByteArray()) + "-" + parts.size() + "\"</ETag></CompleteMultipartUploadResult>");
+        } else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+            uploads.remove(query.get("uploadId"));
+            abortedParts.put(key, partSizes.remove(query.get("uploadId")));
+            respond(exchange, 204, null, null);
+        } else if (method.equals("PUT")) {
+            byte[] body = body(exchange);
+            store(key, body);
+            respond(exchange, 200, md5(body), null);
+        } else {
+            respond(exchange, 501, null, "<Error><Code>NotImplemented</Code></Error>");
+        }
+    }
+
+    private void store(String key, byte[] content) {
+        if (objects.put(key, retain ? content : new byte[0]) != null) {
+            overwrites.incrementAndGet();
+        }
+        arrivals.putIfAbsent(key, System.currentTimeMillis());
+    }
+
+    private byte[] body(HttpExchange exchange) throws IOException {
+        byte[] raw = IOUtils.toByteArray(exchange.getRequestBody());
+        String sha = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        byte[] body = sha != null && sha.startsWith("STREAMING-") ? decodeChunked(raw) : raw;
+        bytesReceived.addAndGet(body.length);
+        return body;
+    }
+
+    /**
+     * Decodes {@code aws-chunked} payload: {@code <hex size>;chunk-signature=<sig>\r\n<data>\r\n}, ending with zero size.
+     */
+    private static byte[] decodeChunked(byte[] raw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+        int pos = 0;
+        while (pos < raw.length) {
+            int lineEnd = pos;
+            while (raw[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            String header = new String(raw, pos, lineEnd - pos);
+            int size = Integer.parseInt(header.substring(0, header.indexOf(';')), 16);
+            pos = lineEnd + 2;
+            if (size == 0) {
+                break;
+            }
+            out.write(raw, pos, size);
+            pos += size + 2;
+        }
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int code, String etag, String xml) throws IOException {
+        if (etag != null) {
+            exchange.getResponseHeaders().set("ETag", "\"" + etag + "\"");
+        }
+        byte[] body = xml == null ? new byte[0] : ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes("UTF-8");
+        if (xml != null) {
+            exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        }
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        OutputStream os = exchange.getResponseBody();
+        try {
+            // the stream of an empty response is closed already
+            if (body.length > 0) {
+                os.write(body);
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    private static Map<String, String> query(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> result = new HashMap<String, String>();
+        if (rawQuery != null) {
+            for (String p : rawQuery.split("&")) {
+                int i = p.indexOf('=');
+                result.put(URLDecoder.decode(i < 0 ? p : p.substring(0, i), "UTF-8"),
+                        i < 0 ? "" : URLDecoder.decode(p.substring(i + 1), "UTF-8"));
+            }
+        }
+        return result;
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        return Hex.encodeHexString(MessageDigest.getInstance("MD5").digest(data));
+    }
+
+}
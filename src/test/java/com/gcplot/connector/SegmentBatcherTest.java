@@ -0,0 +1,101 @@
+package com.gcplot.connector;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class SegmentBatcherTest {
+    private static final String STREAM_A = "3e1cc8880a4e3b0f7b1f4a3c2d6e9f0a1b2c3d4e";
+    private static final String STREAM_B = "ac2c4648bb2d7f1e0c9d8a7b6c5d4e3f2a1b0c9d";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBatchRoundTrip() throws Exception {
+        File dir = folder.getRoot();
+        // added out of order, the offsets 9 and 10 would be misordered if they weren't padded
+        File b0 = segment(dir, STREAM_B, 0, "b0\n");
+        File a10 = segment(dir, STREAM_A, 10, "a10\n");
+        File a0 = segment(dir, STREAM_A, 0, "a0\n");
+        File a9 = segment(dir, STREAM_A, 9, "a9\n");
+        File a100 = segment(dir, STREAM_A, 100, "a100\n");
+        final List<File> batches = new ArrayList<File>();
+        final List<File> batched = new ArrayList<File>();
+        SegmentBatcher batcher = new SegmentBatcher(1024 * 1024, 0, new SegmentBatcher.Listener() {
+            @Override
+            public void onBatch(String jvmId, File batch, List<File> members) {
+                assertEquals("jvm", jvmId);
+                batches.add(batch);
+                batched.addAll(members);
+            }
+        });
+        for (File f : Arrays.asList(b0, a10, a0, a9, a100)) {
+            assertTrue(batcher.add("jvm", f));
+        }
+        batcher.flushReady();
+
+        assertEquals(1, batches.size());
+        File batch = batches.get(0);
+        assertTrue(SegmentBatcher.isBatch(batch));
+        List<File> expected = Arrays.asList(a0, a9, a10, a100, b0);
+        assertEquals(expected, batched);
+        assertEquals(expected, SegmentBatcher.members(batch));
+
+        // the manifest member is an empty gzip member, so the batch reads as the members concatenated
+        InputStream in = new GZIPInputStream(new FileInputStream(batch));
+        try {
+            assertEquals("a0\na9\na10\na100\nb0\n", IOUtils.toString(in, "UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testLargeAndEventFilesAreNotBatched() throws Exception {
+        File dir = folder.getRoot();
+        SegmentBatcher batcher = new SegmentBatcher(64, 0, new SegmentBatcher.Listener() {
+            @Override
+            public void onBatch(String jvmId, File batch, List<File> members) {
+                fail("Nothing should be batched.");
+            }
+        });
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            large.append(i).append('\n');
+        }
+        assertFalse(batcher.add("jvm", segment(dir, STREAM_A, 0, large.toString())));
+        File events = new File(dir, STREAM_A + "-0000000000000000000" + SegmentWriter.EVENTS_SUFFIX);
+        FileUtils.writeByteArrayToFile(events, new byte[] { 1 });
+        assertFalse(batcher.add("jvm", events));
+        batcher.flushReady();
+    }
+
+    @Test
+    public void testFileWithoutManifestHasNoMembers() throws Exception {
+        File f = segment(folder.getRoot(), STREAM_A, 0, "a0\n");
+        assertTrue(SegmentBatcher.members(f).isEmpty());
+    }
+
+    private static File segment(File dir, String streamId, long offset, String content) throws IOException {
+        File f = new File(dir, String.format("%s-%019d", streamId, offset) + SegmentWriter.RAW_SUFFIX);
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(f));
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+}
@@ -0,0 +1,90 @@
+package com.gcplot.connector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class StateJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReload() throws Exception {
+        File file = new File(folder.getRoot(), "state.journal");
+        StateJournal journal = new StateJournal(file);
+        journal.put("jvm/1", state(100, "aa"));
+        journal.put("jvm/2", state(200, "bb"));
+        journal.put("jvm/1", state(150, "cc"));
+        journal.remove("jvm/2");
+        journal.close();
+
+        StateJournal reloaded = new StateJournal(file);
+        assertEquals(1, reloaded.keys().size());
+        SourceState state = reloaded.get("jvm/1");
+        assertEquals(150, state.getLength());
+        assertEquals("cc", state.getFingerprint());
+        assertEquals(GcLogFormat.LEGACY_DATED, state.getFormat());
+        assertEquals("gc.log", state.getName());
+        assertNull(state.getStreamId());
+        reloaded.close();
+    }
+
+    @Test
+    public void testTornLastUpdate() throws Exception {
+        File file = new File(folder.getRoot(), "state.journal");
+        StateJournal journal = new StateJournal(file);
+        journal.put("jvm/1", state(100, "aa"));
+        journal.close();
+        long length = file.length();
+        journal = new StateJournal(file);
+        journal.put("jvm/1", state(200, "bb"));
+        journal.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+
+        StateJournal reloaded = new StateJournal(file);
+        assertEquals(100, reloaded.get("jvm/1").getLength());
+        assertEquals("aa", reloaded.get("jvm/1").getFingerprint());
+        reloaded.close();
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void testCompactionKeepsLiveEntries() throws Exception {
+        File file = new File(folder.getRoot(), "state.journal");
+        StateJournal journal = new StateJournal(file);
+        for (int i = 0; i < 5000; i++) {
+            journal.put("jvm/" + (i % 10), state(i, "f" + i));
+        }
+        journal.close();
+        // compacted on the way, so it's far from 5000 records
+        assertTrue(file.length() < 2000L * 64);
+
+        StateJournal reloaded = new StateJournal(file);
+        assertEquals(10, reloaded.keys().size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(4990 + i, reloaded.get("jvm/" + i).getLength());
+        }
+        reloaded.close();
+    }
+
+    private static SourceState state(long length, String fingerprint) {
+        SourceState state = new SourceState();
+        state.setLength(length);
+        state.setLastModified(1490695200000L);
+        state.setFingerprint(fingerprint);
+        state.setFormat(GcLogFormat.LEGACY_DATED);
+        state.setName("gc.log");
+        return state;
+    }
+}
@@ -0,0 +1,63 @@
+package com.gcplot.connector;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UploadIndexTest {
+    private static final long TTL_MS = TimeUnit.DAYS.toMillis(14);
+    private static final int CAPACITY = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testContains() throws Exception {
+        File file = new File(folder.getRoot(), "upload.index");
+        UploadIndex index = new UploadIndex(file, TTL_MS, CAPACITY);
+        index.add("jvm", name(1));
+        // not named by the content
+        index.add("jvm", "stream-0000000000000000000.log.gz");
+        assertTrue(index.contains("jvm", name(1)));
+        assertFalse(index.contains("other", name(1)));
+        assertFalse(index.contains("jvm", name(2)));
+        assertFalse(index.contains("jvm", "stream-0000000000000000000.log.gz"));
+        assertEquals(1, index.size());
+        index.close();
+
+        UploadIndex reloaded = new UploadIndex(file, TTL_MS, CAPACITY);
+        assertTrue(reloaded.contains("jvm", name(1)));
+        reloaded.close();
+    }
+
+    @Test
+    public void testEvictionOfEntriesOfTheSameSecond() throws Exception {
+        UploadIndex index = new UploadIndex(new File(folder.getRoot(), "upload.index"), TTL_MS, CAPACITY);
+        // the table of 1024 slots is full at 768 entries, and the burst is way faster than a second
+        int added = CAPACITY;
+        for (int i = 0; i < added; i++) {
+            index.add("jvm", name(i));
+        }
+        int contained = 0;
+        for (int i = 0; i < added; i++) {
+            if (index.contains("jvm", name(i))) {
+                contained++;
+            }
+        }
+        assertEquals(index.size(), contained);
+        assertTrue("Only " + contained + " entries are left.", contained >= CAPACITY * 3 / 4 / 2);
+        assertTrue(contained <= CAPACITY * 3 / 4);
+        assertTrue(index.contains("jvm", name(added - 1)));
+        index.close();
+    }
+
+    private static String name(int i) {
+        return DigestUtils.sha1Hex(String.valueOf(i)) + SegmentWriter.RAW_SUFFIX;
+    }
+}
@@ -0,0 +1,187 @@
+package com.gcplot.connector;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UploadSchedulerTest {
+    private static final String JVM_ID = "jvm";
+    private static final long TIMEOUT_MS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final List<ExecutorService> workers = new ArrayList<ExecutorService>();
+    private final List<UploadScheduler> schedulers = new ArrayList<UploadScheduler>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (ExecutorService executor : workers) {
+            executor.shutdownNow();
+        }
+        for (UploadScheduler scheduler : schedulers) {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void testRestartResumesOnlyUnfinished() throws Exception {
+        File done = file("done.log.gz");
+        File uploading = file("uploading.log.gz");
+        File queued = file("queued.log.gz");
+        final CountDownLatch never = new CountDownLatch(1);
+        final Set<String> completed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        UploadScheduler scheduler = scheduler(executor, 3, new UploadScheduler.Handler() {
+            @Override
+            public void upload(String jvmId, File file) throws Exception {
+                if (file.getName().startsWith("done")) {
+                    completed.add(file.getName());
+                } else {
+                    // still being uploaded when the process dies
+                    never.await();
+                }
+            }
+        });
+        scheduler.start();
+        scheduler.submit(JVM_ID, done, true);
+        scheduler.submit(JVM_ID, uploading, true);
+        scheduler.submit(JVM_ID, queued, true);
+        waitFor(scheduler, uploading, UploadScheduler.UploadState.UPLOADING);
+        assertEquals(Collections.singleton("done.log.gz"), completed);
+        crash(executor, scheduler);
+
+        final Set<String> resumed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        scheduler = scheduler(Executors.newFixedThreadPool(2), 3, new UploadScheduler.Handler() {
+            @Override
+            public void upload(String jvmId, File file) throws Exception {
+                assertEquals(JVM_ID, jvmId);
+                resumed.add(file.getName());
+            }
+        });
+        scheduler.start();
+        waitForEmpty(scheduler);
+        assertEquals(new HashSet<String>(Arrays.asList("uploading.log.gz", "queued.log.gz")), resumed);
+
+        // all of them are completed now
+        resumed.clear();
+        scheduler = scheduler(Executors.newSingleThreadExecutor(), 3, new UploadScheduler.Handler() {
+            @Override
+            public void upload(String jvmId, File file) throws Exception {
+                resumed.add(file.getName());
+            }
+        });
+        scheduler.start();
+        assertEquals(0, scheduler.pending());
+        assertTrue(resumed.isEmpty());
+    }
+
+    @Test
+    public void testDeadLetterAfterMaxAttempts() throws Exception {
+        File f = file("failing.log.gz");
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch never = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        UploadScheduler scheduler = scheduler(executor, 2, new UploadScheduler.Handler() {
+            @Override
+            public void upload(String jvmId, File file) throws Exception {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new IOException("Storage is down.");
+                }
+                never.await();
+            }
+        });
+        scheduler.start();
+        scheduler.submit(JVM_ID, f, false);
+        // the failure is logged before the retry, which may be on its way already
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (scheduler.state(JVM_ID, f) != UploadScheduler.UploadState.FAILED && attempts.get() < 2) {
+            assertTrue("Timed out waiting for the failure.", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        crash(executor, scheduler);
+
+        // the failed attempt is counted after the restart
+        scheduler = scheduler(Executors.newSingleThreadExecutor(), 2, new UploadScheduler.Handler() {
+            @Override
+            public void upload(String jvmId, File file) throws Exception {
+                attempts.incrementAndGet();
+                throw new IOException("Storage is still down.");
+            }
+        });
+        attempts.set(0);
+        scheduler.start();
+        waitForEmpty(scheduler);
+        assertEquals(1, attempts.get());
+        assertEquals(1, scheduler.deadLettered());
+        assertFalse(f.exists());
+        assertTrue(new File(new File(folder.getRoot(), "dead/" + JVM_ID), "failing.log.gz").exists());
+    }
+
+    @Test
+    public void testPermanentFailureIsNotRetried() throws Exception {
+        File f = file("rejected.log.gz");
+        final AtomicInteger attempts = new AtomicInteger();
+        UploadScheduler scheduler = scheduler(Executors.newSingleThreadExecutor(), 5, new UploadScheduler.Handler() {
+            @Override
+            public void upload(String jvmId, File file) throws Exception {
+                attempts.incrementAndGet();
+                throw new UploadException("Entity too large.", null, true);
+            }
+        });
+        scheduler.start();
+        scheduler.submit(JVM_ID, f, false);
+        waitForEmpty(scheduler);
+        assertEquals(1, attempts.get());
+        assertEquals(1, scheduler.deadLettered());
+    }
+
+    private UploadScheduler scheduler(ExecutorService executor, int maxAttempts, UploadScheduler.Handler handler) {
+        workers.add(executor);
+        UploadScheduler scheduler = new UploadScheduler(new File(folder.getRoot(), "upload.wal"),
+                new File(folder.getRoot(), "dead"), 16, maxAttempts, executor, 1, handler);
+        schedulers.add(scheduler);
+        return scheduler;
+    }
+
+    /**
+     * Stops the workers and the scheduler without letting them finish anything, as if the process died.
+     */
+    private static void crash(ExecutorService executor, UploadScheduler scheduler) throws Exception {
+        executor.shutdownNow();
+        assertTrue(executor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        scheduler.close();
+    }
+
+    private File file(String name) throws IOException {
+        File f = new File(folder.getRoot(), name);
+        FileUtils.writeStringToFile(f, name, "UTF-8");
+        return f;
+    }
+
+    private static void waitFor(UploadScheduler scheduler, File f, UploadScheduler.UploadState state)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (scheduler.state(JVM_ID, f) != state) {
+            assertTrue("Timed out waiting for " + state + " of " + f.getName(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void waitForEmpty(UploadScheduler scheduler) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (scheduler.pending() > 0) {
+            assertTrue("Timed out waiting for the uploads.", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}